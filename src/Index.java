@@ -4,9 +4,15 @@ package edu.buffalo.cse.sql;
 import java.io.File;
 
 import edu.buffalo.cse.sql.data.Datum;
+import edu.buffalo.cse.sql.buffer.BufferCleaner;
 import edu.buffalo.cse.sql.buffer.BufferManager;
+import edu.buffalo.cse.sql.buffer.ClockEvictionPolicy;
+import edu.buffalo.cse.sql.buffer.EvictionPolicy;
 import edu.buffalo.cse.sql.buffer.FileManager;
+import edu.buffalo.cse.sql.buffer.LRUEvictionPolicy;
 import edu.buffalo.cse.sql.buffer.ManagedFile;
+import edu.buffalo.cse.sql.buffer.PackedIntCodec;
+import edu.buffalo.cse.sql.buffer.TwoQueueEvictionPolicy;
 import edu.buffalo.cse.sql.index.IndexKeySpec;
 import edu.buffalo.cse.sql.index.GenericIndexKeySpec;
 import edu.buffalo.cse.sql.index.IndexFile;
@@ -40,6 +46,13 @@ public class Index {
 		int keychaos = 2;
 		int indexSize = rows/10;//100//10//Total no of buckets
 		boolean validate = false;
+		boolean direct = false;
+		int pageSize = BufferManager.DEFAULT_PAGE_SIZE;
+		String policy = "lru";
+		boolean cleaner = false;
+		boolean stats = false;
+		boolean mmap = false;
+		boolean compress = false;
 		Datum[] get = null;
 		Datum[] from = null;
 		Datum[] to = null;
@@ -63,6 +76,22 @@ public class Index {
 				i++; 
 			} else if(args[i].equals("-validate")){
 				validate = true;
+			} else if(args[i].equals("-direct")){
+				direct = true;
+			} else if(args[i].equals("-cleaner")){
+				cleaner = true;
+			} else if(args[i].equals("-stats")){
+				stats = true;
+			} else if(args[i].equals("-mmap")){
+				mmap = true;
+			} else if(args[i].equals("-compress")){
+				compress = true;
+			} else if(args[i].equals("-policy")){
+				policy = args[i+1];
+				i++; 
+			} else if(args[i].equals("-pageSize")){
+				pageSize = Integer.parseInt(args[i+1]);
+				i++; 
 			} else if(args[i].equals("-get")){
 				get = parseRow(args[i+1]);
 				i++; 
@@ -84,14 +113,22 @@ public class Index {
 			}
 		}
 
-		BufferManager bm = new BufferManager(frames);
+		EvictionPolicy evictionPolicy = new LRUEvictionPolicy();
+		if(policy.equals("clock")){
+			evictionPolicy = new ClockEvictionPolicy(frames);
+		} else if(policy.equals("2q")){
+			evictionPolicy = new TwoQueueEvictionPolicy(frames);
+		}
+		BufferManager bm = new BufferManager(frames, pageSize, evictionPolicy, direct);
+		if(cleaner){ new BufferCleaner(bm).start(); }
 		FileManager fm = new FileManager(bm);
+		if(compress){ fm.setCompression(new PackedIntCodec()); }
 
 		TestDataStream ds = new TestDataStream(keys, values, rows, keychaos, true);
 		IndexKeySpec keySpec = new GenericIndexKeySpec(ds.getSchema(), keys);
 
 		if(validate){
-			ManagedFile file = fm.open(idxFile);
+			ManagedFile file = mmap ? fm.openMapped(idxFile) : fm.open(idxFile);
 			IndexFile idx = null;
 			switch(type){
 			case HASH:
@@ -110,19 +147,22 @@ public class Index {
 				if(to == null){ scan = idx.rangeScanFrom(from); }
 				else { scan = idx.rangeScan(from,to); }
 			}
+			boolean valid;
 			try {
-				if(ds.validate(scan, from, to)){
-					System.out.println("Test Successful!");
-					System.exit(0);
-				} else {
-					System.out.println("Test Failed!");
-					System.exit(-1);
-				}
+				valid = ds.validate(scan, from, to);
 			} finally {
 				scan.close();
 			}
+			if(stats){ System.err.print(fm.dumpStats()); }
+			if(valid){
+				System.out.println("Test Successful!");
+				System.exit(0);
+			} else {
+				System.out.println("Test Failed!");
+				System.exit(-1);
+			}
 		} else if(get != null) {
-			ManagedFile file = fm.open(idxFile);
+			ManagedFile file = mmap ? fm.openMapped(idxFile) : fm.open(idxFile);
 			IndexFile idx = null;
 			switch(type){
 			case HASH:
@@ -149,6 +189,6 @@ public class Index {
 			}
 		}
 		ManagedFile file = fm.open(idxFile);
-
+		if(stats){ System.err.print(fm.dumpStats()); }
 	}
 }
\ No newline at end of file
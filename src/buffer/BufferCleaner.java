@@ -0,0 +1,140 @@
+/**
+ * A background thread that writes dirty frames back to disk before they are
+ * chosen for eviction, so that BufferManager.allocate() usually finds a clean
+ * victim and doesn't have to wait for a write (and fsync) on the allocating
+ * thread.
+ *
+ * Every [intervalMillis] the cleaner sweeps the pool.  A frame is cold if it
+ * has not been touched, pinned or unpinned since the previous sweep.  If the
+ * pool has fewer than [cleanWatermark] clean frames (free frames, or unpinned
+ * frames with nothing to write), the cleaner writes back cold, dirty, unpinned
+ * frames until the watermark is reached, but never more than [pagesPerSecond]
+ * pages per second.  Only frames whose eviction callback implements
+ * WriteBackCallback (e.g., ManagedFile pages) can be cleaned.  Written pages
+ * are not forced to disk; ManagedFile.flush() takes care of that.
+ *
+ * start():    Start the cleaner thread (a daemon).
+ * shutdown(): Stop the cleaner thread, and wait for it to exit.
+ * cleanPass(): Run a single sweep on the calling thread.
+ *
+ * The cleaner keeps its own counters (passes, frames scanned, pages written,
+ * failed writes, and the number of clean frames seen on the last pass),
+ * which can be read at any time.
+ **/
+package edu.buffalo.cse.sql.buffer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BufferCleaner implements Runnable {
+
+  BufferManager pool;
+  int cleanWatermark;
+  int pagesPerSecond;
+  long intervalMillis;
+
+  Thread thread;
+  volatile boolean running;
+  int[] coldDirty;
+
+  final AtomicLong passes = new AtomicLong(0);
+  final AtomicLong framesScanned = new AtomicLong(0);
+  final AtomicLong pagesWritten = new AtomicLong(0);
+  final AtomicLong writeFailures = new AtomicLong(0);
+  volatile int lastCleanFrames = 0;
+
+  public BufferCleaner(BufferManager pool)
+  {
+    this(pool, Math.max(1, pool.size() / 8), 10000, 10);
+  }
+
+  public BufferCleaner(BufferManager pool, int cleanWatermark,
+                       int pagesPerSecond, long intervalMillis)
+  {
+    this.pool = pool;
+    this.cleanWatermark = cleanWatermark;
+    this.pagesPerSecond = pagesPerSecond;
+    this.intervalMillis = intervalMillis;
+    this.coldDirty = new int[pool.size()];
+  }
+
+  public synchronized void start()
+  {
+    if(thread != null){ return; }
+    running = true;
+    thread = new Thread(this, "BufferCleaner");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void shutdown()
+    throws InterruptedException
+  {
+    Thread t;
+    synchronized(this){ t = thread; thread = null; running = false; }
+    if(t != null){ t.interrupt(); t.join(); }
+  }
+
+  public void run()
+  {
+    while(running){
+      cleanPass();
+      try { Thread.sleep(intervalMillis); }
+      catch(InterruptedException e) { }
+    }
+  }
+
+  public synchronized int cleanPass()
+  {
+    int clean = 0;
+    int cold = 0;
+    for(int page = 0; page < pool.size(); page++){
+      int count = pool.pinCount.get(page);
+      boolean recent = pool.recentlyUsed[page];
+      pool.recentlyUsed[page] = false;
+      if(count < 0){ clean++; continue; }  //free, or being evicted
+      if(count > 0){ continue; }
+      EvictionCallback callback = pool.callbacks[page];
+      if(!(callback instanceof WriteBackCallback) ||
+         !((WriteBackCallback)callback).isDirty(page)){
+        clean++;
+      } else if(!recent){
+        coldDirty[cold++] = page;
+      }
+    }
+    framesScanned.addAndGet(pool.size());
+    passes.incrementAndGet();
+    lastCleanFrames = clean;
+
+    int budget = (int)Math.max(1, (pagesPerSecond * intervalMillis) / 1000);
+    int written = 0;
+    for(int i = 0; i < cold && clean < cleanWatermark && written < budget; i++){
+      EvictionCallback callback = pool.callbacks[coldDirty[i]];
+      if(!(callback instanceof WriteBackCallback)){ continue; }
+      try {
+        if(((WriteBackCallback)callback).writeBack(coldDirty[i])){
+          written++;
+          clean++;
+        }
+      } catch(BufferException e) {
+        writeFailures.incrementAndGet();
+      }
+    }
+    pagesWritten.addAndGet(written);
+    return written;
+  }
+
+  public long getPasses() { return passes.get(); }
+  public long getFramesScanned() { return framesScanned.get(); }
+  public long getPagesWritten() { return pagesWritten.get(); }
+  public long getWriteFailures() { return writeFailures.get(); }
+  public int getLastCleanFrames() { return lastCleanFrames; }
+
+  public String toString()
+  {
+    return "BufferCleaner: " + getPasses() + " passes, " +
+           getFramesScanned() + " frames scanned, " +
+           getPagesWritten() + " pages written, " +
+           getWriteFailures() + " failed writes, " +
+           getLastCleanFrames() + " clean frames on last pass";
+  }
+}
@@ -1,11 +1,19 @@
 /**
  * Paging infrastructure akin to a buffer manager.  The BufferManager maintains
  * a pool of N frames, each enough to store a single page of [pageSize] bytes. 
+ * The page size is chosen when the pool is constructed (any power of two from
+ * 1KB to 1MB; DEFAULT_PAGE_SIZE if unspecified), and is fixed thereafter.
  * 
  * Each frame is represented as a single instance of java.nio.ByteBuffer.  This
  * handy utility class provides not only a fixed size memory space, but also
  * tools for encoding/decoding primitive values.
  * 
+ * Frames normally live on the Java heap.  A pool constructed with direct set
+ * to true instead slices all of its frames out of one large direct (off-heap)
+ * slab.  FileChannel reads and writes then go straight into frame memory 
+ * rather than through a temporary direct buffer, and the pool adds nothing to
+ * the heap the garbage collector has to scan.
+ * 
  * The buffer manager API supports 5 basic accessors.
  * 
  * allocate: Attempt to obtain a buffer frame.  If a frame is free, it will be 
@@ -33,21 +41,103 @@
  * 
  * unpin:    Unpin a pinned buffer page.  There must be one unpin for each pin.
  *
+ * tryPin:   As pin, but only succeeds if the frame is still allocated to the
+ *           provided callback and is not in the middle of being evicted.
+ *           Returns false instead of throwing.  This is the safe way to pin a
+ *           frame when other threads may be allocating out of the same pool.
+ *
+ * hold/release: As tryPin/unpin, but without counting as a use of the frame:
+ *           the frame keeps its place in the eviction order.  Meant for 
+ *           housekeeping (e.g., flushing) that must keep a frame from being 
+ *           evicted for a moment.
+ *
+ * claim/unclaim: Take an unpinned frame out of use while its page is written
+ *           out: until it is unclaimed, the frame can't be pinned, held,
+ *           evicted or freed (tryPin() and hold() return false), so nobody
+ *           can modify the page in the middle of the write.  Claiming fails
+ *           if the frame is pinned or held.
+ *
+ * readStamp/validate: Optimistic reads.  Take a stamp, check that the frame
+ *           is not pinned, read the frame without pinning it, and validate 
+ *           the stamp: if the frame was evicted, handed to a new owner, 
+ *           pinned or held (the first pin or hold of an unpinned frame 
+ *           bumps its stamp), or invalidated in the meantime, validation 
+ *           fails and the read must be retried.  As long as frames are only
+ *           modified under a pin, a validated read never saw a modification
+ *           in progress.  Optimistic readers don't write to any shared 
+ *           per-frame state, except for touchLazily(), which only writes a
+ *           flag if it isn't already set.
+ *
+ * QUOTAS:
+ * The pool can be partitioned with createQuota(name, reserved, cap).  Frames
+ * are charged to the quota they were allocated under (see BufferQuota); each
+ * quota is guaranteed to be able to hold on to [reserved] frames, and may 
+ * never hold more than [cap].  Without any quotas, every frame belongs to a
+ * single default quota, and the pool behaves as a plain shared pool.
+ *
+ * The pool counts the frames it hands out and the evictions it performs 
+ * (getAllocations, getEvictions, resetStats).  Hits, misses and I/O are 
+ * counted per file, by ManagedFile (see BufferStats).
+ *
+ * CONCURRENCY:
+ * All of the accessors above may be called from multiple threads at once.  
+ * Per-frame metadata (pin counts and eviction callbacks) is lock-free: pin 
+ * counts live in an AtomicIntegerArray, and a pin count of -1 marks a frame 
+ * that is free or that is being handed to a new owner.  Only transitions that
+ * change whether a frame is a candidate for eviction (a pin count moving 
+ * between 0 and 1, eviction, freeing) take the eviction policy's monitor, and 
+ * the free list has a lock of its own.  No lock is held while an eviction 
+ * callback runs, so callbacks may safely block on their own locks.
+ *
+ * A frame obtained through get() without a pin may be evicted by another 
+ * thread at any time.  Threads sharing a pool should pin any frame they read.
  **/
 
 package edu.buffalo.cse.sql.buffer;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
 
 public class BufferManager {
   
-  public static final int pageSize = 1024;
+  public static final int DEFAULT_PAGE_SIZE = 1024;
+  public static final int MIN_PAGE_SIZE = 1024;
+  public static final int MAX_PAGE_SIZE = 1024 * 1024;
+  
+  //Pin count of a frame that is on the free list, or being evicted.
+  static final int UNAVAILABLE = -1;
 
+  final int pageSize;
   ByteBuffer[] bufferPool;
   EvictionCallback[] callbacks;
-  int[] pinCount;
+  AtomicIntegerArray pinCount;
+  //Set whenever a frame is used, cleared by the BufferCleaner as it sweeps by;
+  //a frame that stays clear for a whole sweep is cold.
+  boolean[] recentlyUsed;
+  //Set (under the policy's monitor) when a frame is taken out of the policy
+  //while pinned or held; it goes back in once the last pin or hold is gone.
+  boolean[] dropped;
+  //Per-frame version stamps for optimistic reads.  A frame's stamp changes
+  //whenever the frame is claimed for a new owner, or its page is modified.
+  StampedLock[] stamps;
+  //Set by optimistic readers instead of touching the policy; a candidate 
+  //with this set gets a second chance before it is evicted.
+  boolean[] lazilyTouched;
   int nextFreePage;
+  final Object freeListLock = new Object();
+  //Guards every quota's eviction policy, and the quota bookkeeping below.
   EvictionPolicy evictionPolicy;
+  //The quota each allocated frame is charged to (null while free).
+  BufferQuota[] frameQuota;
+  ArrayList<BufferQuota> quotas = new ArrayList<BufferQuota>();
+  final BufferQuota defaultQuota;
+  int totalReserved = 0;
+  //Pool-wide counters; per-file I/O counters live in each ManagedFile.
+  final LongAdder allocations = new LongAdder();
+  final LongAdder evictions = new LongAdder();
   
   public BufferManager(int pages)
   {
@@ -56,16 +146,143 @@ public class BufferManager {
   
   public BufferManager(int pages, EvictionPolicy policy)
   {
-    bufferPool = new ByteBuffer[pages];
-    pinCount = new int[pages];
+    this(pages, policy, false);
+  }
+  
+  public BufferManager(int pages, EvictionPolicy policy, boolean direct)
+  {
+    this(pages, DEFAULT_PAGE_SIZE, policy, direct);
+  }
+  
+  public BufferManager(int pages, int pageSize, EvictionPolicy policy, 
+                       boolean direct)
+  {
+    if(!isValidPageSize(pageSize)){
+      throw new IllegalArgumentException("Invalid page size: "+pageSize);
+    }
+    this.pageSize = pageSize;
+    bufferPool = direct ? sliceSlab(pages) : new ByteBuffer[pages];
+    pinCount = new AtomicIntegerArray(pages);
+    recentlyUsed = new boolean[pages];
+    dropped = new boolean[pages];
+    stamps = new StampedLock[pages];
+    lazilyTouched = new boolean[pages];
     for(int i = 0; i < pages; i++){
-      bufferPool[i] = ByteBuffer.allocate(pageSize);
+      if(!direct){ bufferPool[i] = ByteBuffer.allocate(pageSize); }
       bufferPool[i].putInt(0, (i < (pages-1)) ? i+1 : -1);
-      pinCount[i] = 0;
+      pinCount.set(i, UNAVAILABLE);
+      stamps[i] = new StampedLock();
     }
-    nextFreePage = 0;
+    nextFreePage = (pages > 0) ? 0 : -1;
     callbacks = new EvictionCallback[pages];
+    frameQuota = new BufferQuota[pages];
     this.evictionPolicy = policy;
+    defaultQuota = new BufferQuota("default", 0, pages, policy);
+    quotas.add(defaultQuota);
+  }
+  
+  /**
+   * Create a new quota: a partition of the pool that is guaranteed to be able 
+   * to keep [reserved] frames, and that may never hold more than [cap].  The
+   * quota's frames are managed by [policy], which must not be shared with 
+   * anything else.
+   **/
+  public BufferQuota createQuota(String name, int reserved, int cap,
+                                 EvictionPolicy policy)
+  {
+    synchronized(evictionPolicy){
+      if(reserved < 0 || cap < Math.max(1, reserved) || 
+         totalReserved + reserved > size()){
+        throw new IllegalArgumentException(
+          "Can't reserve "+reserved+" frames (capped at "+cap+") for quota "+
+          name+"; "+totalReserved+" of "+size()+" frames already reserved");
+      }
+      BufferQuota quota = new BufferQuota(name, reserved, cap, policy);
+      totalReserved += reserved;
+      quotas.add(quota);
+      return quota;
+    }
+  }
+  
+  public BufferQuota createQuota(String name, int reserved, int cap)
+  {
+    return createQuota(name, reserved, cap, new LRUEvictionPolicy());
+  }
+  
+  public BufferQuota getDefaultQuota()
+  {
+    return defaultQuota;
+  }
+  
+  public BufferQuota[] getQuotas()
+  {
+    synchronized(evictionPolicy){
+      return quotas.toArray(new BufferQuota[quotas.size()]);
+    }
+  }
+  
+  //The policy in charge of an allocated frame.  Caller holds the policy lock.
+  private EvictionPolicy policyOf(int page)
+  {
+    BufferQuota quota = frameQuota[page];
+    return (quota == null) ? evictionPolicy : quota.policy;
+  }
+  
+  //A single ByteBuffer tops out at 2GB, so very large pools get one slab per
+  //2GB worth of frames.
+  private ByteBuffer[] sliceSlab(int pages)
+  {
+    ByteBuffer[] frames = new ByteBuffer[pages];
+    int framesPerSlab = Integer.MAX_VALUE / pageSize;
+    ByteBuffer slab = null;
+    for(int i = 0; i < pages; i++){
+      int offset = i % framesPerSlab;
+      if(offset == 0){
+        slab = ByteBuffer.allocateDirect(
+                  Math.min(pages - i, framesPerSlab) * pageSize);
+      }
+      slab.limit((offset + 1) * pageSize);
+      slab.position(offset * pageSize);
+      frames[i] = slab.slice();
+    }
+    return frames;
+  }
+  
+  public static boolean isValidPageSize(int pageSize)
+  {
+    return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE &&
+           Integer.bitCount(pageSize) == 1;
+  }
+  
+  public int getPageSize()
+  {
+    return pageSize;
+  }
+  
+  public boolean isDirect()
+  {
+    return bufferPool.length > 0 && bufferPool[0].isDirect();
+  }
+  
+  public int size()
+  {
+    return bufferPool.length;
+  }
+  
+  public long getAllocations()
+  {
+    return allocations.sum();
+  }
+  
+  public long getEvictions()
+  {
+    return evictions.sum();
+  }
+  
+  public void resetStats()
+  {
+    allocations.reset();
+    evictions.reset();
   }
   
   public ByteBuffer get(int i)
@@ -76,77 +293,344 @@ public class BufferManager {
   public void pin(int page)
     throws BufferException
   {
-//    System.out.println("Pin " + page);
-    if(pinCount[page] == 0){
-      evictionPolicy.remove(page);
+    int count;
+    do {
+      count = pinCount.get(page);
+      if(count < 0){
+        throw new BufferException("Attempt to pin a free or evicting page");
+      }
+    } while(!pinCount.compareAndSet(page, count, count+1));
+    //before the caller can modify anything
+    if(count == 0){ invalidate(page); leavePolicy(page); }
+  }
+  
+  public boolean tryPin(int page, EvictionCallback owner)
+  {
+    int count;
+    do {
+      count = pinCount.get(page);
+      if(count < 0 || callbacks[page] != owner){ return false; }
+    } while(!pinCount.compareAndSet(page, count, count+1));
+    if(count == 0){ invalidate(page); leavePolicy(page); }
+    //The frame may have changed hands between the owner check and the CAS; 
+    //now that we hold a pin it can't change again, so check once more.
+    if(callbacks[page] != owner){
+      try { unpin(page); } catch(BufferException e) {}
+      return false;
     }
-    pinCount[page] ++;
+    return true;
   }
   
   public void unpin(int page)
     throws BufferException
   {
-//    System.out.println("Unpin " + page);
-    if(pinCount[page] <= 0){
-      throw new BufferException("Attempt to unpin an unpinned page");
+    int count;
+    do {
+      count = pinCount.get(page);
+      if(count <= 0){
+        throw new BufferException("Attempt to unpin an unpinned page");
+      }
+    } while(!pinCount.compareAndSet(page, count, count-1));
+    if(count == 1){ enterPolicy(page); }
+  }
+  
+  public boolean hold(int page, EvictionCallback owner)
+  {
+    int count;
+    do {
+      count = pinCount.get(page);
+      if(count < 0 || callbacks[page] != owner){ return false; }
+    } while(!pinCount.compareAndSet(page, count, count+1));
+    //a pin taken while we hold the frame won't bump its stamp
+    if(count == 0){ invalidate(page); }
+    if(callbacks[page] != owner){
+      try { release(page); } catch(BufferException e) {}
+      return false;
+    }
+    return true;
+  }
+  
+  public void release(int page)
+    throws BufferException
+  {
+    int count;
+    do {
+      count = pinCount.get(page);
+      if(count <= 0){
+        throw new BufferException("Attempt to release an unheld page");
+      }
+    } while(!pinCount.compareAndSet(page, count, count-1));
+    if(count == 1){
+      synchronized(evictionPolicy){
+        if(dropped[page] && pinCount.get(page) == 0){ 
+          dropped[page] = false;
+          policyOf(page).add(page); 
+        }
+      }
+    }
+  }
+  
+  public boolean claim(int page, EvictionCallback owner)
+  {
+    if(callbacks[page] != owner || !pinCount.compareAndSet(page, 0, UNAVAILABLE)){
+      return false;
     }
-    pinCount[page] -= 1;
-    if(pinCount[page] == 0){
-//      System.out.println("Page is free " + page);
-      evictionPolicy.add(page);
+    //As in tryPin(): the frame may have changed hands before the CAS.
+    if(callbacks[page] != owner){
+      unclaim(page);
+      return false;
+    }
+    return true;
+  }
+  
+  public void unclaim(int page)
+  {
+    synchronized(evictionPolicy){
+      pinCount.set(page, 0);
+      //an eviction may have found it claimed and taken it out of the policy
+      if(dropped[page]){
+        dropped[page] = false;
+        policyOf(page).add(page);
+      }
     }
   }
   
+  /**
+   * Start an optimistic read of [page]: returns a stamp to validate() once 
+   * the read is over, or 0 if the frame is being modified right now.
+   **/
+  public long readStamp(int page)
+  {
+    return stamps[page].tryOptimisticRead();
+  }
+  
+  /**
+   * True if the frame hasn't changed hands (or content) since [stamp] was
+   * obtained from readStamp().
+   **/
+  public boolean validate(int page, long stamp)
+  {
+    return stamp != 0 && stamps[page].validate(stamp);
+  }
+  
+  /**
+   * Bump the frame's version stamp, failing any optimistic read in progress.
+   **/
+  public void invalidate(int page)
+  {
+    StampedLock lock = stamps[page];
+    lock.unlockWrite(lock.writeLock());
+  }
+  
+  /**
+   * True if the frame belongs to [owner], and is not being evicted.  Only a
+   * hint, unless combined with a validated stamp.
+   **/
+  public boolean isOwnedBy(int page, EvictionCallback owner)
+  {
+    return pinCount.get(page) >= 0 && callbacks[page] == owner;
+  }
+  
+  /**
+   * A touch that doesn't take any locks, for optimistic readers.  The policy
+   * only hears of it when the frame comes up for eviction.
+   **/
+  public void touchLazily(int page)
+  {
+    if(!lazilyTouched[page]){ lazilyTouched[page] = true; }
+    if(!recentlyUsed[page]){ recentlyUsed[page] = true; }
+  }
+  
+  public boolean isPinned(int page)
+  {
+    return pinCount.get(page) > 0;
+  }
+  
   public void touch(int page)
   {
-    if(pinCount[page] <= 0){ evictionPolicy.touch(page); }
+    recentlyUsed[page] = true;
+    if(pinCount.get(page) == 0){
+      synchronized(evictionPolicy){
+        if(pinCount.get(page) == 0){ policyOf(page).touch(page); }
+      }
+    }
   }
   
   public void free(int page)
     throws BufferException
   {
-    if(pinCount[page] > 0) {
-      throw new BufferException("Attempt to free a pinned page");
+    synchronized(evictionPolicy){
+      if(!pinCount.compareAndSet(page, 0, UNAVAILABLE)) {
+        throw new BufferException("Attempt to free a pinned page");
+      }
+      policyOf(page).free(page);
+      frameQuota[page].resident--;
+      frameQuota[page] = null;
     }
-    evictionPolicy.remove(page);
-    bufferPool[page].putInt(0, nextFreePage);
-    nextFreePage = page;
+    invalidate(page);
     callbacks[page] = null;
+    synchronized(freeListLock){
+      bufferPool[page].putInt(0, nextFreePage);
+      nextFreePage = page;
+    }
+  }
+  
+  //A frame's pin count just went from 1 to 0.  Policy membership is only 
+  //changed under the policy's monitor, and only if the pin count still agrees
+  //by the time we get there.
+  private void enterPolicy(int page)
+  {
+    recentlyUsed[page] = true;
+    synchronized(evictionPolicy){
+      if(pinCount.get(page) == 0){ 
+        dropped[page] = false;
+        policyOf(page).add(page); 
+      }
+    }
+  }
+  
+  //A frame's pin count just went from 0 to 1.
+  private void leavePolicy(int page)
+  {
+    synchronized(evictionPolicy){
+      if(pinCount.get(page) > 0){ 
+        dropped[page] = true;
+        policyOf(page).remove(page); 
+      }
+    }
+  }
+  
+  private int popFreePage()
+  {
+    synchronized(freeListLock){
+      int allocated = nextFreePage;
+      if(allocated >= 0){
+        nextFreePage = bufferPool[allocated].getInt(0);
+      }
+      return allocated;
+    }
   }
   
-  private int evictAndTransfer(EvictionCallback callback)
+  //Pick (and claim) a frame to evict for [quota].  A quota at its cap must 
+  //evict one of its own frames.  Otherwise, the victim comes from whichever
+  //quota holds the most frames beyond its reservation; only the requesting
+  //quota itself may be pushed below its reservation.  Caller holds the 
+  //policy lock.
+  private int selectVictim(BufferQuota quota)
     throws BufferException
   {
-    //doesn't actually evict it, just selects
-    int page = evictionPolicy.selectCandidate();
-    if(page < 0){
-      throw new AllocationException("Insufficient unpinned pages in buffer pool");
+    boolean atCap = quota.resident >= quota.cap;
+    boolean[] exhausted = new boolean[quotas.size()];
+    while(true){
+      int from = -1;
+      for(int i = 0; i < quotas.size(); i++){
+        BufferQuota q = quotas.get(i);
+        if(exhausted[i] || (atCap && q != quota) || 
+           (q != quota && q.resident <= q.reserved)){ continue; }
+        if(from < 0 || 
+           q.resident - q.reserved > 
+             quotas.get(from).resident - quotas.get(from).reserved){ 
+          from = i; 
+        }
+      }
+      if(from < 0){
+        throw new AllocationException("Insufficient unpinned pages in buffer pool"+
+          (atCap ? " for quota "+quota.getName() : ""));
+      }
+      EvictionPolicy policy = quotas.get(from).policy;
+      //doesn't actually evict it, just selects
+      int page = policy.selectCandidate();
+      if(page < 0){ exhausted[from] = true; continue; }
+      if(lazilyTouched[page]){
+        lazilyTouched[page] = false;
+        policy.touch(page);
+        continue;
+      }
+      policy.remove(page);
+      //A pinned frame may have been left behind by a racing pin(), or be
+      //held; whoever unpins or releases it last will put it back.
+      if(pinCount.compareAndSet(page, 0, UNAVAILABLE)){ 
+        //before the new owner can write anything into the frame
+        invalidate(page);
+        lazilyTouched[page] = false;
+        return page; 
+      }
+      dropped[page] = true;
     }
-    if(pinCount[page] > 0) {
-      throw new BufferException("Bug: Trying to free a pinned page");
+  }
+  
+  //Hand a frame to [quota]: a free frame if the quota is below its cap and 
+  //one is available, or else a frame evicted from its previous resident.
+  private int evictAndTransfer(BufferQuota quota)
+    throws BufferException
+  {
+    int page = -1;
+    BufferQuota previousQuota;
+    synchronized(evictionPolicy){
+      if(quota.resident < quota.cap){ page = popFreePage(); }
+      if(page < 0){ page = selectVictim(quota); }
+      previousQuota = frameQuota[page];
+      if(previousQuota != null){ previousQuota.resident--; }
+      frameQuota[page] = quota;
+      quota.resident++;
     }
-    if(callbacks[page] != null){
-      callbacks[page].evict(page);
+    //No locks are held while the previous resident flushes the page out.
+    EvictionCallback previous = callbacks[page];
+    callbacks[page] = null;
+    if(previous != null){
+      evictions.increment();
+      try {
+        previous.evict(page);
+      } catch(BufferException e) {
+        synchronized(evictionPolicy){
+          quota.resident--;
+          previousQuota.resident++;
+          frameQuota[page] = previousQuota;
+        }
+        callbacks[page] = previous;
+        pinCount.set(page, 0);
+        enterPolicy(page);
+        throw e;
+      }
     }
-    callbacks[page] = callback;
-    evictionPolicy.touch(page);
-    pinCount[page] = 0;
     return page;
   }
   
   public int allocate(EvictionCallback callback)
     throws BufferException
   {
-    if(nextFreePage < 0){
-      return evictAndTransfer(callback);
+    return allocate(callback, false);
+  }
+  
+  /**
+   * Allocate a frame.  If [pinned] is true, the frame is returned with a pin
+   * already held, so that no other thread can evict it before the caller has
+   * had a chance to fill it.
+   **/
+  public int allocate(EvictionCallback callback, boolean pinned)
+    throws BufferException
+  {
+    return allocate(callback, pinned, defaultQuota);
+  }
+  
+  /**
+   * Allocate a frame charged to [quota] (see BufferQuota).
+   **/
+  public int allocate(EvictionCallback callback, boolean pinned, 
+                      BufferQuota quota)
+    throws BufferException
+  {
+    int allocated = evictAndTransfer(quota);
+    allocations.increment();
+    bufferPool[allocated].clear();
+    callbacks[allocated] = callback;
+    if(pinned){
+      synchronized(evictionPolicy){ dropped[allocated] = true; }
+      pinCount.set(allocated, 1);
     } else {
-      int allocated = nextFreePage;
-      nextFreePage = bufferPool[allocated].getInt(0);
-      bufferPool[allocated].clear();
-      callbacks[allocated] = callback;
-      evictionPolicy.add(allocated);
-      pinCount[allocated] = 0;
-      return allocated;
+      pinCount.set(allocated, 0);
+      enterPolicy(allocated);
     }
+    return allocated;
   }
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+/**
+ * A standard MBean exposing the counters of a FileManager and its buffer 
+ * pool.  Register one with FileManager.registerMBean().
+ **/
+package edu.buffalo.cse.sql.buffer;
+
+public class BufferPoolMonitor implements BufferPoolMonitorMBean {
+  
+  FileManager fm;
+  
+  public BufferPoolMonitor(FileManager fm)
+  {
+    this.fm = fm;
+  }
+  
+  public int getFrames() { return fm.getBufferManager().size(); }
+  public int getPageSize() { return fm.getBufferManager().getPageSize(); }
+  public int getOpenFiles() { return fm.getFileStats().size(); }
+  public long getAllocations() { return fm.getBufferManager().getAllocations(); }
+  public long getEvictions() { return fm.getBufferManager().getEvictions(); }
+  public long getHits() { return fm.getStats().getHits(); }
+  public long getMisses() { return fm.getStats().getMisses(); }
+  public double getHitRatio() { return fm.getStats().getHitRatio(); }
+  public long getWriteBacks() { return fm.getStats().getWriteBacks(); }
+  public long getPagesRead() { return fm.getStats().getPagesRead(); }
+  public long getPagesWritten() { return fm.getStats().getPagesWritten(); }
+  public long getPins() { return fm.getStats().getPins(); }
+  
+  public String dumpStats() { return fm.dumpStats(); }
+  public void resetStats() { fm.resetStats(); }
+  
+}
@@ -0,0 +1,25 @@
+/**
+ * JMX management interface of a BufferPoolMonitor.  Counter attributes are
+ * totals over every file opened through the monitored FileManager.
+ **/
+package edu.buffalo.cse.sql.buffer;
+
+public interface BufferPoolMonitorMBean {
+  
+  public int getFrames();
+  public int getPageSize();
+  public int getOpenFiles();
+  public long getAllocations();
+  public long getEvictions();
+  public long getHits();
+  public long getMisses();
+  public double getHitRatio();
+  public long getWriteBacks();
+  public long getPagesRead();
+  public long getPagesWritten();
+  public long getPins();
+  
+  public String dumpStats();
+  public void resetStats();
+  
+}
@@ -0,0 +1,48 @@
+/**
+ * A partition of a BufferManager's frames, with a reserved minimum and a cap.
+ * Quotas are created by BufferManager.createQuota(), and handed to
+ * ManagedFile.setQuota() (or, for temp files, FileManager.setTempQuota()).
+ *
+ * reserved: Frames of this quota are never taken away by other quotas while
+ *           it holds [reserved] frames or fewer.  Reserved frames are not set
+ *           aside while unused: a quota below its reservation simply gets to
+ *           evict other quotas' frames to grow back.
+ * cap:      A quota holding [cap] frames has to evict one of its own frames
+ *           to load another page.
+ *
+ * Every quota has its own eviction policy, which only ever sees the quota's
+ * own frames.  Frames not allocated under a quota belong to the pool's
+ * default quota (no reservation, capped at the pool size), whose policy is
+ * the one the BufferManager was constructed with.
+ *
+ * The resident count is maintained by the BufferManager under its policy
+ * monitor; getResident() may be slightly out of date.
+ **/
+package edu.buffalo.cse.sql.buffer;
+
+public class BufferQuota {
+  final String name;
+  final int reserved;
+  final int cap;
+  final EvictionPolicy policy;
+  volatile int resident = 0;
+
+  BufferQuota(String name, int reserved, int cap, EvictionPolicy policy)
+  {
+    this.name = name;
+    this.reserved = reserved;
+    this.cap = cap;
+    this.policy = policy;
+  }
+
+  public String getName() { return name; }
+  public int getReserved() { return reserved; }
+  public int getCap() { return cap; }
+  public int getResident() { return resident; }
+
+  public String toString()
+  {
+    return name + ": " + resident + " frames (reserved " + reserved +
+           ", cap " + cap + ")";
+  }
+}
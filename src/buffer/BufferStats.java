@@ -0,0 +1,86 @@
+/**
+ * I/O counters for a ManagedFile (or, added together, for a set of files).
+ *
+ * hits:         getBuffer() or pin() of a page that was already resident.
+ * misses:       getBuffer() or pin() of a page that had to be read in.
+ * pagesRead:    Pages read from disk, including pages read by prefetch().
+ * pagesWritten: Pages written to disk, for any reason.
+ * writeBacks:   Dirty pages written because their frame was being evicted,
+ *               or ahead of eviction by a BufferCleaner.
+ * evictions:    Pages that had their frame taken away by the BufferManager.
+ * pins:         Calls to pin().
+ *
+ * The counters are LongAdders, so that threads bumping them on the hot paths
+ * don't fight over a single cache line.  Reading a counter while it is being
+ * updated gives an approximate value.
+ *
+ * snapshot(): A copy of the current values that will not change anymore.
+ * reset():    Zero every counter.
+ * add(s):     Add the current values of [s] to these counters.
+ **/
+package edu.buffalo.cse.sql.buffer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class BufferStats {
+  final LongAdder hits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+  final LongAdder pagesRead = new LongAdder();
+  final LongAdder pagesWritten = new LongAdder();
+  final LongAdder writeBacks = new LongAdder();
+  final LongAdder evictions = new LongAdder();
+  final LongAdder pins = new LongAdder();
+
+  public long getHits() { return hits.sum(); }
+  public long getMisses() { return misses.sum(); }
+  public long getPagesRead() { return pagesRead.sum(); }
+  public long getPagesWritten() { return pagesWritten.sum(); }
+  public long getWriteBacks() { return writeBacks.sum(); }
+  public long getEvictions() { return evictions.sum(); }
+  public long getPins() { return pins.sum(); }
+
+  public double getHitRatio()
+  {
+    long hits = getHits();
+    long total = hits + getMisses();
+    return (total == 0) ? 0.0 : (double)hits / total;
+  }
+
+  public BufferStats snapshot()
+  {
+    BufferStats copy = new BufferStats();
+    copy.add(this);
+    return copy;
+  }
+
+  public void add(BufferStats other)
+  {
+    hits.add(other.getHits());
+    misses.add(other.getMisses());
+    pagesRead.add(other.getPagesRead());
+    pagesWritten.add(other.getPagesWritten());
+    writeBacks.add(other.getWriteBacks());
+    evictions.add(other.getEvictions());
+    pins.add(other.getPins());
+  }
+
+  public void reset()
+  {
+    hits.reset();
+    misses.reset();
+    pagesRead.reset();
+    pagesWritten.reset();
+    writeBacks.reset();
+    evictions.reset();
+    pins.reset();
+  }
+
+  public String toString()
+  {
+    return String.format(
+      "%d hits, %d misses (hit ratio %.3f), %d evictions, %d write-backs, "+
+      "%d pages read, %d pages written, %d pins",
+      getHits(), getMisses(), getHitRatio(), getEvictions(), getWriteBacks(),
+      getPagesRead(), getPagesWritten(), getPins());
+  }
+}
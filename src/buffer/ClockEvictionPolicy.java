@@ -0,0 +1,110 @@
+/**
+ * A CLOCK (second-chance) eviction policy for the BufferManager.
+ *
+ * Frames are arranged in a circle, in frame order.  Each frame has two bits:
+ * whether it is being considered for replacement at all (add/remove), and
+ * whether it has been referenced since the clock hand last passed it (touch).
+ * When eviction time comes, the hand sweeps around the circle.  A referenced
+ * frame has its bit cleared and is given a second chance; the first
+ * unreferenced candidate is selected.
+ *
+ * Both bit sets are plain long[] arrays, so add, remove and touch are O(1) and
+ * never allocate (except to grow the arrays when a frame beyond the initial
+ * capacity is added).  All the work is done by selectCandidate().
+ **/
+package edu.buffalo.cse.sql.buffer;
+
+public class ClockEvictionPolicy implements EvictionPolicy {
+  long[] candidate;
+  long[] referenced;
+  int candidates;
+  int hand;
+
+  public ClockEvictionPolicy()
+  {
+    this(64);
+  }
+
+  public ClockEvictionPolicy(int pages)
+  {
+    int words = Math.max(1, (pages + 63) >>> 6);
+    candidate = new long[words];
+    referenced = new long[words];
+    candidates = 0;
+    hand = 0;
+  }
+
+  protected void ensureCapacity(int page)
+  {
+    int words = candidate.length;
+    if((page >>> 6) < words){ return; }
+    while((page >>> 6) >= words){ words *= 2; }
+    long[] newCandidate = new long[words];
+    long[] newReferenced = new long[words];
+    System.arraycopy(candidate, 0, newCandidate, 0, candidate.length);
+    System.arraycopy(referenced, 0, newReferenced, 0, referenced.length);
+    candidate = newCandidate;
+    referenced = newReferenced;
+  }
+
+  public void add(int page)
+  {
+    ensureCapacity(page);
+    int w = page >>> 6;
+    long bit = 1L << page;
+    if((candidate[w] & bit) == 0){
+      candidate[w] |= bit;
+      candidates++;
+    }
+    referenced[w] |= bit;
+  }
+
+  public void remove(int page)
+  {
+    int w = page >>> 6;
+    if(w >= candidate.length){ return; }
+    long bit = 1L << page;
+    if((candidate[w] & bit) != 0){
+      candidate[w] &= ~bit;
+      candidates--;
+    }
+    referenced[w] &= ~bit;
+  }
+
+  public void touch(int page)
+  {
+    int w = page >>> 6;
+    if(w < referenced.length){ referenced[w] |= 1L << page; }
+  }
+
+  public void free(int page)
+  {
+    remove(page);
+  }
+
+  public int selectCandidate()
+  {
+    if(candidates == 0){ return -1; }
+    int limit = candidate.length << 6;
+    //Terminates within two sweeps: the first clears every reference bit.
+    while(true){
+      if(hand >= limit){ hand = 0; }
+      int w = hand >>> 6;
+      if(candidate[w] == 0){
+        //skip a whole word of non-candidates at once
+        hand = (w + 1) << 6;
+        continue;
+      }
+      long bit = 1L << hand;
+      if((candidate[w] & bit) != 0){
+        if((referenced[w] & bit) != 0){
+          referenced[w] &= ~bit;
+        } else {
+          return hand++;
+        }
+      }
+      hand++;
+    }
+  }
+
+}
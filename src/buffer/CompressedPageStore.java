@@ -0,0 +1,263 @@
+/**
+ * The on-disk side of a compressed ManagedFile: each page is stored,
+ * compressed by a PageCodec, in a variable-length slot of its own, and a
+ * page-offset map records where each page's slot is.
+ *
+ * Slots are rounded up to SLOT_ALIGN bytes.  A page rewritten with a
+ * compressed size that still fits its slot is written in place; otherwise
+ * it gets a new slot at the end of the data, and the old slot is dead space.
+ * A page that doesn't compress below the page size is stored as is (its
+ * recorded length is the page size).  Pages without a slot read as zeroes.
+ *
+ * The map is written by writeMap() (at every ManagedFile.flush()) to the end
+ * of the data, and the file header records where.  The previous copy of the
+ * map is left alone, so a crash before the header is rewritten still finds
+ * a complete map (though, as with plain files, pages rewritten in place since
+ * the last flush may be torn).  Dead slots and old maps are not reclaimed; getDeadBytes()
+ * reports how much space they take.
+ *
+ * Map lookups and slot allocation are serialized; the reads, writes and
+ * (de)compression themselves are not.  As with uncompressed files, a page is
+ * never read and written at the same time.
+ **/
+package edu.buffalo.cse.sql.buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+class CompressedPageStore {
+  static final int SLOT_ALIGN = 64;
+
+  final FileChannel channel;
+  final PageCodec codec;
+  final int pageSize;
+  //Offset (0 if none) and length of each page's slot.
+  long[] offsets;
+  int[] lengths;
+  //End of the data (and of the last map written).
+  long dataEnd;
+  //Where the map was last written (0 if it never was).
+  long mapOffset;
+  long mapBytes = 0;
+  boolean mapDirty = false;
+  long deadBytes = 0;
+
+  CompressedPageStore(FileChannel channel, PageCodec codec, int pageSize,
+                      long dataEnd, long mapOffset)
+    throws IOException
+  {
+    this.channel = channel;
+    this.codec = codec;
+    this.pageSize = pageSize;
+    this.dataEnd = dataEnd;
+    this.mapOffset = mapOffset;
+    offsets = new long[0];
+    lengths = new int[0];
+    if(mapOffset > 0){ readMap(); }
+  }
+
+  static long align(long bytes)
+  {
+    return (bytes + SLOT_ALIGN - 1) / SLOT_ALIGN * SLOT_ALIGN;
+  }
+
+  //Map layout: number of pages, then each page's slot offset and length.
+  protected void readMap()
+    throws IOException
+  {
+    ByteBuffer count = ByteBuffer.allocate(4);
+    readFully(count, mapOffset);
+    int n = count.getInt(0);
+    ByteBuffer map = ByteBuffer.allocate(n * 12);
+    readFully(map, mapOffset + 4);
+    offsets = new long[n];
+    lengths = new int[n];
+    mapBytes = align(4 + (long)n * 12);
+    for(int i = 0; i < n; i++){
+      offsets[i] = map.getLong(i * 12);
+      lengths[i] = map.getInt(i * 12 + 8);
+    }
+  }
+
+  /**
+   * Write the map out, if any slot changed since it was last written.
+   * Returns true if it was written (and the header has to be updated).
+   **/
+  synchronized boolean writeMap(int numPages)
+    throws IOException
+  {
+    if(!mapDirty){ return false; }
+    int n = Math.min(numPages, offsets.length);
+    ByteBuffer map = ByteBuffer.allocate(4 + n * 12);
+    map.putInt(n);
+    for(int i = 0; i < n; i++){ map.putLong(offsets[i]).putInt(lengths[i]); }
+    map.flip();
+    long at = dataEnd;
+    writeFully(map, at);
+    deadBytes += mapBytes;
+    mapOffset = at;
+    mapBytes = align(4 + (long)n * 12);
+    dataEnd = at + mapBytes;
+    mapDirty = false;
+    return true;
+  }
+
+  //Forget the slots of pages past [numPages].
+  synchronized void resize(int numPages)
+  {
+    if(numPages >= offsets.length){ return; }
+    for(int i = numPages; i < offsets.length; i++){
+      if(offsets[i] > 0){ deadBytes += align(lengths[i]); }
+    }
+    offsets = Arrays.copyOf(offsets, numPages);
+    lengths = Arrays.copyOf(lengths, numPages);
+    mapDirty = true;
+  }
+
+  /**
+   * Read page [id] into [page] (from 0 to its limit).
+   **/
+  void read(int id, ByteBuffer page)
+    throws IOException
+  {
+    long offset;
+    int length;
+    synchronized(this){
+      offset = (id < offsets.length) ? offsets[id] : 0;
+      length = (id < lengths.length) ? lengths[id] : 0;
+    }
+    if(offset == 0){
+      ManagedFile.zero(page);
+      return;
+    }
+    if(length == pageSize){
+      page.position(0);
+      readFully(page, offset);
+      page.position(0);
+      return;
+    }
+    ByteBuffer in = ByteBuffer.allocate(length);
+    readFully(in, offset);
+    codec.decompress(in.array(), 0, length, page);
+  }
+
+  /**
+   * Read pages [ids[0]] through [ids[n-1]] into [pages].  If their slots lie
+   * in the same order on disk, without much space between them (as they do 
+   * when the pages were written in order), they are all read with a single 
+   * read; otherwise they are read one at a time.
+   **/
+  void read(int[] ids, ByteBuffer[] pages, int n)
+    throws IOException
+  {
+    long[] slotOffsets = new long[n];
+    int[] slotLengths = new int[n];
+    synchronized(this){
+      for(int i = 0; i < n; i++){
+        int id = ids[i];
+        slotOffsets[i] = (id < offsets.length) ? offsets[id] : 0;
+        slotLengths[i] = (id < lengths.length) ? lengths[id] : 0;
+      }
+    }
+    long used = 0;
+    boolean ordered = n > 1;
+    for(int i = 0; i < n && ordered; i++){
+      used += slotLengths[i];
+      ordered = slotOffsets[i] > 0 && 
+                (i == 0 || slotOffsets[i] > slotOffsets[i-1]);
+    }
+    long span = ordered ? 
+      slotOffsets[n-1] + slotLengths[n-1] - slotOffsets[0] : 0;
+    if(!ordered || span > 2 * used || span > Integer.MAX_VALUE){
+      for(int i = 0; i < n; i++){ read(ids[i], pages[i]); }
+      return;
+    }
+    ByteBuffer in = ByteBuffer.allocate((int)span);
+    readFully(in, slotOffsets[0]);
+    byte[] bytes = in.array();
+    for(int i = 0; i < n; i++){
+      int at = (int)(slotOffsets[i] - slotOffsets[0]);
+      if(slotLengths[i] == pageSize){
+        pages[i].position(0);
+        pages[i].put(bytes, at, pageSize);
+        pages[i].position(0);
+      } else {
+        codec.decompress(bytes, at, slotLengths[i], pages[i]);
+      }
+    }
+  }
+
+  /**
+   * Write page [id] from [page] (from 0 to its limit), compressed.
+   **/
+  void write(int id, ByteBuffer page)
+    throws IOException
+  {
+    byte[] out = new byte[pageSize - 1];
+    int length = codec.compress(page, out);
+    ByteBuffer data;
+    if(length < 0){
+      length = pageSize;
+      data = page.duplicate();
+      data.position(0);
+    } else {
+      data = ByteBuffer.wrap(out, 0, length);
+    }
+    long offset;
+    synchronized(this){
+      if(id >= offsets.length){
+        int size = Math.max(id + 1, offsets.length * 2);
+        offsets = Arrays.copyOf(offsets, size);
+        lengths = Arrays.copyOf(lengths, size);
+      }
+      if(offsets[id] > 0 && align(length) <= align(lengths[id])){
+        offset = offsets[id];
+      } else {
+        if(offsets[id] > 0){ deadBytes += align(lengths[id]); }
+        offset = dataEnd;
+        dataEnd += align(length);
+      }
+      offsets[id] = offset;
+      lengths[id] = length;
+      mapDirty = true;
+    }
+    writeFully(data, offset);
+  }
+
+  synchronized long getDataEnd()
+  {
+    return dataEnd;
+  }
+
+  synchronized long getMapOffset()
+  {
+    return mapOffset;
+  }
+
+  synchronized long getDeadBytes()
+  {
+    return deadBytes;
+  }
+
+  protected void readFully(ByteBuffer buffer, long position)
+    throws IOException
+  {
+    while(buffer.hasRemaining()){
+      int bytesRead = channel.read(buffer, position);
+      if(bytesRead < 0){
+        throw new IOException("Compressed page store truncated at "+position);
+      }
+      position += bytesRead;
+    }
+  }
+
+  protected void writeFully(ByteBuffer buffer, long position)
+    throws IOException
+  {
+    while(buffer.hasRemaining()){
+      position += channel.write(buffer, position);
+    }
+  }
+}
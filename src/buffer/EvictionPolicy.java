@@ -4,6 +4,8 @@
  * add(page) should enter [page] into consideration for replacement.
  * remove(page) should remove [page] from consideration for replacement.
  * touch(page) indicates that [page] has received recent activity.
+ * free(page) indicates that [page] was freed: it is no longer considered for
+ *            replacement, and anything known about its past use is forgotten.
  *
  * selectCandidate() should return a page being considered for replacement and
  *                   subsequently remove it from future consideration.
@@ -16,6 +18,7 @@ public interface EvictionPolicy {
   public void add(int page);
   public void remove(int page);
   public void touch(int page);
+  public void free(int page);
   
   //Select a page for eviction, but don't actually evict it.
   public int selectCandidate();
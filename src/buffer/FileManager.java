@@ -1,25 +1,66 @@
 /**
  * Interface on top of the buffer manager that provides access to data files.
  * 
- * Three methods are provided: 
+ * Four methods are provided: 
  *
  * open() opens an existing file or returns a pointer to an existing instance
- *        of the same file.
- * openTemp() opens a temporary file of a specified size.
- * close() closes a fie that has been opened.
+ *        of the same file.  A page size may be given for files that do not
+ *        exist yet; existing files keep the page size in their header.
+ * openMapped() opens an existing file read-only, memory-mapped.  
+ *        setCompression() makes open() create new files compressed.
+ * openTemp() opens a temporary file of a specified size.  Temp files live in
+ *        the buffer pool until pool pressure forces one of their pages out,
+ *        and only then get a file on disk.  setTempQuota() picks the 
+ *        BufferQuota that temp files are charged to.
+ * close() closes a fie that has been opened.  Closing a temp file throws its
+ *        pages away and deletes it.
+ *
+ * saveSnapshot() records which pages of each open file are resident in the
+ * buffer pool, e.g., at shutdown.  After a restart, loadSnapshot() reads 
+ * those pages back into the files that have been opened again, in file order
+ * and with one read per run of adjacent pages, instead of letting the pool 
+ * warm up one cold miss at a time.
+ *
+ * The FileManager also collects the I/O counters of the files it manages:
+ * getStats() adds up every file opened so far (closed files included), 
+ * getFileStats() breaks them down by open file, and dumpStats() formats both,
+ * along with the pool's own counters, as text.  registerMBean() exposes the 
+ * same numbers over JMX (see BufferPoolMonitor).
  **/
 
 package edu.buffalo.cse.sql.buffer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class FileManager {
   
   BufferManager bufferManager;
   
   HashMap<File, ManagedFile> openFiles;
+  //Counters of files that have since been closed.
+  BufferStats closedStats = new BufferStats();
+  //Quota temp files are opened under; null for the pool's default.
+  BufferQuota tempQuota = null;
+  //Codec new files are compressed with; null for plain files.
+  PageCodec compression = null;
   
   public FileManager(BufferManager bufferManager)
   {
@@ -27,36 +68,239 @@ public class FileManager {
     openFiles = new HashMap<File, ManagedFile>();
   }
   
+  public BufferManager getBufferManager()
+  {
+    return bufferManager;
+  }
+  
   public ManagedFile open(File file)
     throws IOException
+  {
+    return open(file, bufferManager.getPageSize());
+  }
+  
+  public synchronized ManagedFile open(File file, int pageSize)
+    throws IOException
   {
     ManagedFile ret = openFiles.get(file);
     if(ret != null){ ret.refcount += 1; return ret; }
-    ret = new ManagedFile(file, bufferManager);
+    ret = new ManagedFile(file, bufferManager, pageSize, compression);
     openFiles.put(file, ret);
     return ret;
   }
   
+  /**
+   * Create every file open() creates from now on compressed with [codec] 
+   * (null for uncompressed files).  Files that already exist, and temp 
+   * files, are not affected.
+   **/
+  public void setCompression(PageCodec codec)
+  {
+    compression = codec;
+  }
+  
+  /**
+   * Open an existing file read-only, memory-mapped rather than read through 
+   * the buffer pool.  If the file is already open, the open instance is 
+   * returned instead.
+   **/
+  public synchronized ManagedFile openMapped(File file)
+    throws IOException
+  {
+    ManagedFile ret = openFiles.get(file);
+    if(ret != null){ ret.refcount += 1; return ret; }
+    ret = new ManagedFile(file, bufferManager, bufferManager.getPageSize(), true);
+    openFiles.put(file, ret);
+    return ret;
+  }
+  
+  /**
+   * Open every temp file from now on under [quota], e.g., to keep spill files
+   * from pushing index pages out of the pool.
+   **/
+  public void setTempQuota(BufferQuota quota)
+  {
+    tempQuota = quota;
+  }
+  
   public ManagedFile openTemp(int size)
     throws IOException
   {
-    ManagedFile ret = open(File.createTempFile("SQL", ".bufferfile"));
+    File file = new File(System.getProperty("java.io.tmpdir"), 
+                         "SQL" + UUID.randomUUID() + ".bufferfile");
+    ManagedFile ret = 
+      new ManagedFile(file, bufferManager, bufferManager.getPageSize(), 
+                      false, true);
+    if(tempQuota != null){ ret.setQuota(tempQuota); }
     ret.resize(size);
+    synchronized(this){ openFiles.put(file, ret); }
     return ret;
   }
   
-  public void close(File file)
+  public synchronized void close(File file)
     throws IOException, BufferException
   {
     ManagedFile ret = openFiles.get(file);
     if(ret != null){ 
       ret.refcount -= 1; 
       if(ret.refcount <= 0){
-        ret.flush();
+        if(ret.isTemp()){ ret.discard(); }
+        else { ret.flush(); }
+        closedStats.add(ret.stats);
         openFiles.remove(file);
       }
     }
   }
   
-  protected void removeFile(File f){ openFiles.remove(f); }
-}
\ No newline at end of file
+  protected synchronized void removeFile(File f){ openFiles.remove(f); }
+  
+  //Snapshot layout: magic, number of files, then for each file its absolute
+  //path, the number of pages, and the page ids in ascending order.
+  static final int SNAPSHOT_MAGIC = 0x53514c57;
+  
+  /**
+   * Write the ids of the resident pages of every open file (other than temp
+   * and mapped files) to [snapshot].  Returns the number of pages recorded.
+   **/
+  public int saveSnapshot(File snapshot)
+    throws IOException
+  {
+    ArrayList<ManagedFile> files = new ArrayList<ManagedFile>();
+    synchronized(this){
+      for(ManagedFile f : openFiles.values()){
+        if(!f.isTemp() && !f.isMapped()){ files.add(f); }
+      }
+    }
+    int total = 0;
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(snapshot)));
+    try {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(files.size());
+      for(ManagedFile f : files){
+        int[] pages = f.residentPages();
+        out.writeUTF(f.getFile().getAbsolutePath());
+        out.writeInt(pages.length);
+        for(int page : pages){ out.writeInt(page); }
+        total += pages.length;
+      }
+    } finally {
+      out.close();
+    }
+    return total;
+  }
+  
+  /**
+   * Read the pages recorded in [snapshot] back into the buffer pool.  Only
+   * files that are open at the time are warmed; the others are skipped.  At 
+   * most as many pages as the pool has frames are read.  Returns the number
+   * of pages read.
+   **/
+  public int loadSnapshot(File snapshot)
+    throws IOException, BufferException
+  {
+    HashMap<String, ManagedFile> byPath = new HashMap<String, ManagedFile>();
+    synchronized(this){
+      for(ManagedFile f : openFiles.values()){
+        byPath.put(f.getFile().getAbsolutePath(), f);
+      }
+    }
+    int budget = bufferManager.size();
+    int loaded = 0;
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(snapshot)));
+    try {
+      if(in.readInt() != SNAPSHOT_MAGIC){
+        throw new IOException(snapshot+" is not a buffer pool snapshot");
+      }
+      int numFiles = in.readInt();
+      for(int i = 0; i < numFiles; i++){
+        String path = in.readUTF();
+        int[] pages = new int[in.readInt()];
+        for(int j = 0; j < pages.length; j++){ pages[j] = in.readInt(); }
+        ManagedFile f = byPath.get(path);
+        if(f == null || budget <= 0){ continue; }
+        if(pages.length > budget){ pages = Arrays.copyOf(pages, budget); }
+        budget -= pages.length;
+        loaded += f.warm(pages);
+      }
+    } finally {
+      in.close();
+    }
+    return loaded;
+  }
+  
+  /**
+   * The counters of every file opened through this FileManager, added up.
+   **/
+  public synchronized BufferStats getStats()
+  {
+    BufferStats total = closedStats.snapshot();
+    for(ManagedFile f : openFiles.values()){ total.add(f.stats); }
+    return total;
+  }
+  
+  /**
+   * A snapshot of each open file's counters, files with the most misses 
+   * first.
+   **/
+  public synchronized Map<File, BufferStats> getFileStats()
+  {
+    ArrayList<ManagedFile> files = new ArrayList<ManagedFile>(openFiles.values());
+    final HashMap<ManagedFile, BufferStats> snapshots = 
+      new HashMap<ManagedFile, BufferStats>();
+    for(ManagedFile f : files){ snapshots.put(f, f.getStats()); }
+    Collections.sort(files, new Comparator<ManagedFile>() {
+      public int compare(ManagedFile a, ManagedFile b)
+      {
+        return Long.compare(snapshots.get(b).getMisses(), 
+                            snapshots.get(a).getMisses());
+      }
+    });
+    LinkedHashMap<File, BufferStats> ret = new LinkedHashMap<File, BufferStats>();
+    for(ManagedFile f : files){ ret.put(f.getFile(), snapshots.get(f)); }
+    return ret;
+  }
+  
+  public synchronized void resetStats()
+  {
+    closedStats.reset();
+    for(ManagedFile f : openFiles.values()){ f.resetStats(); }
+    bufferManager.resetStats();
+  }
+  
+  public String dumpStats()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(
+      "Buffer pool: %d frames of %d bytes, %d allocations, %d evictions\n",
+      bufferManager.size(), bufferManager.getPageSize(),
+      bufferManager.getAllocations(), bufferManager.getEvictions()));
+    BufferQuota[] quotas = bufferManager.getQuotas();
+    if(quotas.length > 1){
+      for(BufferQuota q : quotas){
+        sb.append("  quota ").append(q).append("\n");
+      }
+    }
+    sb.append("All files: ").append(getStats()).append("\n");
+    for(Map.Entry<File, BufferStats> e : getFileStats().entrySet()){
+      sb.append("  ").append(e.getKey()).append(": ")
+        .append(e.getValue()).append("\n");
+    }
+    return sb.toString();
+  }
+  
+  /**
+   * Register a BufferPoolMonitor for this FileManager with the platform 
+   * MBean server, as edu.buffalo.cse.sql.buffer:type=BufferPool,name=[name].
+   **/
+  public ObjectName registerMBean(String name)
+    throws JMException
+  {
+    ObjectName objectName = 
+      new ObjectName("edu.buffalo.cse.sql.buffer:type=BufferPool,name="+name);
+    ManagementFactory.getPlatformMBeanServer()
+      .registerMBean(new BufferPoolMonitor(this), objectName);
+    return objectName;
+  }
+}
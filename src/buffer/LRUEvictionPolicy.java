@@ -31,6 +31,10 @@ public class LRUEvictionPolicy implements EvictionPolicy {
   {
     remove(page); add(page);
   }
+  public void free(int page)
+  {
+    remove(page);
+  }
   public int selectCandidate()
   {
     if(evictionOrder.size() == 0){ return -1; }
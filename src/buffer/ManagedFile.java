@@ -12,12 +12,22 @@
  * loaded into memory, the getPage() and pin() operations will load the page
  * in.
  *
+ * Every page of a file is the same size, recorded in a header at the start 
+ * of the file when the file is created.  A file's page size defaults to the 
+ * BufferManager's, and may be smaller, but never larger, than the pool's 
+ * frames.  Buffers handed out for a file have their limit set to the file's
+ * page size.
+ *
  * ManagedFile also provides eviction protection.  If a dirty page is evicted
  * by the BufferManager, ManagedFile will ensure that the contents make it to
  * disk before the BufferManager finishes evicting the page.
  * 
  * resize(): Set the file size to the specified number of pages.  Pages in the
- *           overlap between the old size and the new size will be copied.
+ *           overlap between the old size and the new size keep their entries
+ *           (and frames); pages past the new end are forgotten.
+ *           The in-memory page table is filled in lazily, a chunk at a time,
+ *           as pages are first accessed, so resizing (and opening) even a 
+ *           very large file takes next to no time or memory.
  *
  * getBuffer(p):     Return a ByteBuffer containing page [p].  If this page has 
  *                   already been loaded into memory, it is returned.  If not, 
@@ -35,7 +45,25 @@
  * pin(p):           As getBuffer(), but also pin the page being returned.  
  *
  * safePin(p):       As safeGetBuffer(), but also pin the page being returned.
+ *
+ * pinAsync(p):      As pin(), but returns at once with a CompletableFuture of
+ *                   the page's buffer.  A resident page is pinned right away;
+ *                   otherwise the read is done on a shared pool of I/O 
+ *                   threads, so that a caller can keep many reads in flight.
+ *                   The page must be unpinned once the future completes.
  * 
+ * readOptimistic(p, r): Run PageReader [r] over page [p] without pinning it,
+ *                   validating the frame's version stamp afterwards (and 
+ *                   retrying if needed).  Pages are only modified under a 
+ *                   pin, and pinning a frame bumps its stamp, so a read that
+ *                   overlaps a modification is always retried; a page that
+ *                   is pinned when the read starts is read under a pin.
+ *                   readPinned(p, r) always runs [r] under a pin.
+ *
+ * pinRange(p, n):   Pin pages [p] through [p+n-1] at once, reading runs of 
+ *                   non-resident pages with one scatter read each.  
+ *                   unpinRange(p, n, d) unpins them again.
+ *
  * unpin(p[, d]):    Unpin the indicated page.  If the optional dirty bit is
  *                   both present and true, also indicate that the page is 
  *                   dirty.
@@ -43,7 +71,44 @@
  *                   unpin(p, false); is equivalent to just unpin(p);
  * 
  * flush():          Flush all dirty pages to disk, and block until the flush
- *                   is complete.
+ *                   is complete.  Runs of adjacent dirty pages are written
+ *                   with a single gathering write, and the file is forced
+ *                   to disk once at the end.  Dirty pages are found through
+ *                   a bitmap (see markDirty()), so a flush costs time in 
+ *                   proportion to the pages dirtied since the last flush, 
+ *                   not to the size of the file.  This also forces out any pages
+ *                   that were written back early by a BufferCleaner, or 
+ *                   evicted without a sync.
+ *
+ * setQuota(q):      Load this file's pages into frames charged to BufferQuota 
+ *                   [q], e.g., to reserve a working set for an index, or to 
+ *                   cap the share of the pool a spill file may take.
+ *
+ * prefetch(p, n):   Start reading pages [p] through [p+n-1] into the pool in
+ *                   the background (with scatter reads, as pinRange()).  
+ *                   Returns immediately.
+ *
+ * residentPages(): The ids of the pages that are in the pool right now.
+ *                   warm(ps) reads pages [ps] back in, as a warm start after
+ *                   a restart (see FileManager.saveSnapshot()).
+ *
+ * setReadAhead(n):  Cap the read-ahead window of sequential scans over this
+ *                   file at [n] pages (0, the default, disables read-ahead).
+ *
+ * getStats():       A snapshot of this file's hit, miss, eviction and I/O 
+ *                   counters (see BufferStats).  resetStats() zeroes them.
+ *
+ * setSyncOnEvict(b): If false, pages written because they are evicted are 
+ *                   not individually forced to disk; they become durable at
+ *                   the next flush().  Defaults to true.
+ *
+ * allocatePage():   Return a free page (from the free list, or new at the end
+ *                   of the file).  freePage(p) puts [p] on the free list.
+ *
+ * setExtentPages(n): Grow the file on disk [n] pages at a time (default 64).
+ *                   Growing a file (resize(), allocatePage()) never forces it
+ *                   to disk; the new size is recorded in the header and made
+ *                   durable by the next flush().
  *
  * ensureSize(s):    If the file is smaller than [s], resize it to [s] pages.
  *
@@ -52,6 +117,37 @@
  *                   This is an effective way to avoid repeated (expensive) 
  *                   resizing operations on a linearly growing file.
  * 
+ * A file may be stored compressed (see FileManager.setCompression() and 
+ * CompressedPageStore): pages are compressed by a PageCodec as they are 
+ * written, and decompressed as they are read, so frames in the pool always
+ * hold plain pages.  Compressed pages have no fixed place in the file, so
+ * runs of pages are read and written one page at a time, and resize() does
+ * not preallocate.  Opening an existing compressed file needs no special 
+ * call; the header records the codec.
+ *
+ * A temp file (FileManager.openTemp()) starts out living only in the buffer
+ * pool: nothing is created on disk, never-written pages read as zeroes, and
+ * flush() does nothing.  The backing file is only created when one of its
+ * dirty pages has to be evicted (isSpilled() tells whether that happened).
+ * Temp files are deleted when they are closed, or at the latest when the JVM
+ * exits.
+ *
+ * A file opened read-only (FileManager.openMapped()) is memory-mapped instead
+ * of being read through the buffer pool.  getBuffer() and pin() return a 
+ * read-only slice of the mapping, and unpin() does nothing; the OS page 
+ * cache does the caching, and is shared with any other process that maps the
+ * same file.  Such a file can't be dirtied or resized, has no counters, and
+ * ignores prefetch().
+ *
+ * Page accesses (getBuffer, pin, unpin, dirty, flush) may be made from several
+ * threads at once, and pages may be evicted by other threads allocating from
+ * the same BufferManager.  A buffer returned by getBuffer() without a pin can
+ * be evicted as soon as another thread allocates a frame, so concurrent 
+ * readers should pin.  Pages must only be modified while pinned (pin, 
+ * modify, then unpin(p, true)): a BufferCleaner may write out, and mark
+ * clean, any unpinned page at any time.  resize() and its variants must not
+ * run concurrently with other accesses to the same file.
+ * 
  **/
 package edu.buffalo.cse.sql.buffer;
 
@@ -59,57 +155,586 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class ManagedFile { 
   
+  //Header layout: magic, header version, page size, (since version 2) the 
+  //number of pages and the head of the free page list, and (since version 3)
+  //the id of the page codec (0 if uncompressed), the offset of the page map
+  //and the end of the data of a compressed file.  The header occupies the 
+  //first page of the file, so that data pages stay aligned to the page size.
+  static final int HEADER_MAGIC = 0x53514c50;
+  static final int HEADER_VERSION = 3;
+  static final int HEADER_BYTES = 40;
+  
+  //Files grow by at least this many pages at a time, by default.
+  public static final int DEFAULT_EXTENT_PAGES = 64;
+  
   BufferManager manager;
   File file;
-  FileChannel access;
-  Page[] pages;
+  //null for a temp file that has not been spilled to disk (yet).
+  volatile FileChannel access;
+  //The page table: Page objects are created on first access, in chunks of
+  //PAGE_CHUNK pages.  Resizing only touches the chunk directory.
+  volatile AtomicReferenceArray<Page>[] chunks;
+  volatile int numPages;
+  static final int PAGE_CHUNK_BITS = 10;
+  static final int PAGE_CHUNK = 1 << PAGE_CHUNK_BITS;
+  //Pages that may be dirty: one bit per page, kept per chunk (created on the
+  //chunk's first dirty page), plus one bit per chunk in dirtyChunks.  A set 
+  //bit is only a hint; the Page's dirty flag is what counts.
+  volatile AtomicLongArray[] dirtyWords;
+  volatile AtomicLongArray dirtyChunks;
+  int pageSize;
+  long headerSize;
+  //Page count recorded in the header; -1 for files that don't record it.
+  int headerPages = -1;
+  //Bytes of the file on disk, including preallocated but unused pages.
+  long allocatedBytes;
+  int extentPages = DEFAULT_EXTENT_PAGES;
+  //First page of the free page list (each free page holds the next), or -1.
+  int freeHead = -1;
+  //Set when the page count or free list changed since the header was written.
+  volatile boolean headerDirty = false;
   int refcount = 1;
+  //Set when pages have been written (e.g., by the BufferCleaner) without being
+  //forced to disk; the next flush() forces them.
+  volatile boolean unsynced = false;
+  volatile boolean syncOnEvict = true;
+  volatile int readAhead = DEFAULT_READ_AHEAD;
+  final BufferStats stats = new BufferStats();
+  volatile BufferQuota quota;
+  //Page slices of a read-only memory-mapped file; null for buffered files.
+  ByteBuffer[] mapped = null;
+  boolean readOnly = false;
+  //Codec and slot map of a compressed file; both null for plain files.
+  PageCodec codec = null;
+  CompressedPageStore compressed = null;
+  //Temp files only get a file on disk once they have to (see spill()).
+  boolean temp = false;
+  //Set once a temp file has been closed, and its pages thrown away.
+  volatile boolean discarded = false;
+  
+  //Mapped files are mapped a region at a time; one region is at most 1GB.
+  static final int MAP_REGION_BYTES = 1 << 30;
+  
+  //Largest read-ahead window sequential scans of a file may grow to, in pages.
+  //Read-ahead is off unless a file asks for it with setReadAhead().
+  public static final int DEFAULT_READ_AHEAD = 0;
+  
+  //Background threads shared by every file for prefetch() reads, and the 
+  //most prefetch() requests that may wait for them; later ones are dropped.
+  static ExecutorService prefetcher = null;
+  static final int PREFETCH_QUEUE = 64;
+  
+  //Threads shared by every file for pinAsync() reads; also the most reads
+  //pinAsync() has in progress at once.
+  public static final int ASYNC_IO_THREADS = 32;
+  static ExecutorService asyncIO = null;
   	
   protected ManagedFile(File file, BufferManager manager)
     throws IOException
   {
-    access = new RandomAccessFile(file, "rw").getChannel();
+    this(file, manager, manager.getPageSize());
+  }
+  
+  protected ManagedFile(File file, BufferManager manager, int pageSize)
+    throws IOException
+  {
+    this(file, manager, pageSize, false);
+  }
+  
+  /**
+   * If [readOnly] is true, the file is opened read-only and memory-mapped 
+   * instead of being read through the buffer pool.
+   **/
+  protected ManagedFile(File file, BufferManager manager, int pageSize,
+                        boolean readOnly)
+    throws IOException
+  {
+    this(file, manager, pageSize, readOnly, false);
+  }
+  
+  /**
+   * If [temp] is true, [file] is only a name: it is not created until the 
+   * first page has to be spilled to disk, and is deleted by discard().
+   **/
+  protected ManagedFile(File file, BufferManager manager, int pageSize,
+                        boolean readOnly, boolean temp)
+    throws IOException
+  {
+    this(file, manager, pageSize, readOnly, temp, null);
+  }
+  
+  /**
+   * If [file] doesn't exist yet, it is created compressed with [codec] (if 
+   * not null).  Existing files are opened as their header says.
+   **/
+  protected ManagedFile(File file, BufferManager manager, int pageSize,
+                        PageCodec codec)
+    throws IOException
+  {
+    this(file, manager, pageSize, false, false, codec);
+  }
+  
+  private ManagedFile(File file, BufferManager manager, int pageSize,
+                      boolean readOnly, boolean temp, PageCodec codec)
+    throws IOException
+  {
     this.file = file;
+    this.codec = codec;
     this.manager = manager;
-    resizeBytes(access.size());
+    this.quota = manager.getDefaultQuota();
+    this.readOnly = readOnly;
+    if(temp){
+      this.temp = true;
+      this.pageSize = pageSize;
+      headerSize = pageSize;
+      headerPages = 0;
+      allocatedBytes = 0;
+      syncOnEvict = false;
+      resizeTable(0);
+      return;
+    }
+    access = new RandomAccessFile(file, readOnly ? "r" : "rw").getChannel();
+    readHeader(pageSize);
+    allocatedBytes = access.size();
+    if(readOnly){
+      map();
+    } else if(headerPages >= 0){
+      resizeTable(headerPages);
+    } else {
+      long numBytes = allocatedBytes - headerSize;
+      resizeTable((int)(numBytes / pageSize) + 
+                    (int)((numBytes % pageSize > 0) ? 1 : 0));
+    }
+  }
+  
+  //New (empty) files get a header recording [newPageSize].  Files written 
+  //before page sizes were configurable have no header, and 1KB pages.
+  protected void readHeader(int newPageSize)
+    throws IOException
+  {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    if(access.size() == 0){
+      if(readOnly){ throw new IOException("Can't map empty file "+file); }
+      pageSize = newPageSize;
+      headerSize = pageSize;
+      headerPages = 0;
+      if(!BufferManager.isValidPageSize(pageSize)){
+        throw new IOException("Invalid page size "+pageSize+" for "+file);
+      }
+      if(codec != null){
+        compressed = 
+          new CompressedPageStore(access, codec, pageSize, headerSize, 0);
+      }
+      writeHeader();
+      access.force(true);
+    } else {
+      access.read(header, 0);
+      if(header.getInt(0) == HEADER_MAGIC){
+        pageSize = header.getInt(8);
+        headerSize = pageSize;
+        if(header.getInt(4) >= 2){
+          headerPages = header.getInt(12);
+          freeHead = header.getInt(16);
+        }
+        codec = null;
+        if(header.getInt(4) >= 3 && header.getInt(20) != 0){
+          if(!BufferManager.isValidPageSize(pageSize)){
+            throw new IOException("Invalid page size "+pageSize+" in "+file);
+          }
+          codec = codecFor(header.getInt(20));
+          compressed = new CompressedPageStore(access, codec, pageSize, 
+                                               header.getLong(32), 
+                                               header.getLong(24));
+        }
+      } else {
+        pageSize = BufferManager.DEFAULT_PAGE_SIZE;
+        headerSize = 0;
+        codec = null;
+      }
+    }
+    if(!BufferManager.isValidPageSize(pageSize)){
+      throw new IOException("Invalid page size "+pageSize+" in "+file);
+    }
+    if(!readOnly && pageSize > manager.getPageSize()){
+      throw new IOException("Page size of "+file+" ("+pageSize+
+                            ") exceeds the buffer pool's frame size ("+
+                            manager.getPageSize()+")");
+    }
+  }
+  
+  //Write out the page count and free list (files without a header don't 
+  //have either, and only ever grow to the pages actually written).
+  protected void writeHeader()
+    throws IOException
+  {
+    if(headerSize == 0 || access == null){ return; }
+    headerDirty = false;
+    if(temp){ return; }
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(HEADER_MAGIC).putInt(HEADER_VERSION).putInt(pageSize)
+          .putInt(numPages).putInt(freeHead);
+    if(compressed != null){
+      header.putInt(codec.getId()).putLong(compressed.getMapOffset())
+            .putLong(compressed.getDataEnd());
+    }
+    header.clear();
+    access.write(header, 0);
+  }
+  
+  //The codecs a compressed file may name in its header.
+  static PageCodec codecFor(int id)
+    throws IOException
+  {
+    if(id == PackedIntCodec.ID){ return new PackedIntCodec(); }
+    throw new IOException("Unknown page codec "+id);
+  }
+  
+  public boolean isCompressed()
+  {
+    return compressed != null;
+  }
+  
+  public int getPageSize()
+  {
+    return pageSize;
+  }
+  
+  //Map the whole file, and cut it up into one read-only slice per page.  
+  //Pages never written (past the end of the file) read as zeroes, like they
+  //do through the buffer pool.
+  protected void map()
+    throws IOException
+  {
+    if(compressed != null){ 
+      throw new IOException("Can't map compressed file "+file); 
+    }
+    long dataBytes = access.size() - headerSize;
+    int numPages = (headerPages >= 0) ? 
+      (int)Math.min(headerPages, (dataBytes + pageSize - 1) / pageSize) :
+      (int)((dataBytes + pageSize - 1) / pageSize);
+    int pagesPerRegion = MAP_REGION_BYTES / pageSize;
+    mapped = new ByteBuffer[numPages];
+    this.chunks = newDirectory(0);
+    this.dirtyWords = new AtomicLongArray[0];
+    this.dirtyChunks = new AtomicLongArray(0);
+    this.numPages = 0;
+    for(int start = 0; start < numPages; start += pagesPerRegion){
+      long offset = headerSize + (long)start * pageSize;
+      int length = (int)Math.min(access.size() - offset, MAP_REGION_BYTES);
+      MappedByteBuffer region = 
+        access.map(FileChannel.MapMode.READ_ONLY, offset, length);
+      int end = Math.min(numPages, start + pagesPerRegion);
+      for(int i = start; i < end; i++){
+        int pos = (i - start) * pageSize;
+        region.position(pos);
+        if(pos + pageSize <= length){
+          region.limit(pos + pageSize);
+          mapped[i] = region.slice();
+        } else {
+          //A partial last page gets a padded copy.
+          region.limit(length);
+          ByteBuffer tail = ByteBuffer.allocate(pageSize);
+          tail.put(region);
+          tail.clear();
+          mapped[i] = tail.asReadOnlyBuffer();
+        }
+        region.clear();
+      }
+    }
+  }
+  
+  public boolean isMapped()
+  {
+    return mapped != null;
+  }
+  
+  public boolean isTemp()
+  {
+    return temp;
+  }
+  
+  /**
+   * True if this file has a file on disk: always, except for temp files that
+   * never had to spill a page.
+   **/
+  public boolean isSpilled()
+  {
+    return access != null;
+  }
+  
+  //Create the file on disk behind a temp file, with (sparse) room for every
+  //page, so that pages not written yet still read as zeroes.  Called with a 
+  //dirty page's monitor held, when the page has to be written.  Temp files
+  //are never reopened, so no header is written.
+  protected synchronized FileChannel spill()
+    throws IOException
+  {
+    if(access != null){ return access; }
+    if(discarded){ throw new IOException("Temp file "+file+" was discarded"); }
+    file.deleteOnExit();
+    FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+    long extentBytes = (long)Math.max(1, extentPages) * pageSize;
+    long dataBytes = (long)numPages * pageSize;
+    allocatedBytes = headerSize + 
+      Math.max(1, (dataBytes + extentBytes - 1) / extentBytes) * extentBytes;
+    channel.write(ByteBuffer.allocate(1), allocatedBytes - 1);
+    access = channel;
+    return channel;
+  }
+  
+  /**
+   * Throw away a temp file: drop its pages from the buffer pool without 
+   * writing them, and delete the file on disk (if it was ever spilled).  
+   * Pages that are still pinned keep their frames until they are unpinned
+   * for the last time; until then, dirtying, flushing or evicting them does
+   * nothing.
+   **/
+  public void discard()
+    throws IOException
+  {
+    if(!temp){ throw new IOException("Only temp files can be discarded"); }
+    discarded = true;
+    AtomicReferenceArray<Page>[] directory = chunks;
+    for(int c = 0; c < directory.length; c++){
+      AtomicReferenceArray<Page> chunk = directory[c];
+      if(chunk == null){ continue; }
+      for(int i = 0; i < PAGE_CHUNK; i++){
+        Page p = chunk.get(i);
+        if(p != null){ p.discard(); }
+      }
+    }
+    synchronized(this){
+      if(access != null){ access.close(); }
+      file.delete();
+    }
   }
   
   public void resizeBytes(long numBytes)
     throws IOException
   {
-    resize((int)(numBytes / BufferManager.pageSize) + 
-                     (int)((numBytes % BufferManager.pageSize > 0) ? 1 : 0));
+    resize((int)(numBytes / pageSize) + 
+                     (int)((numBytes % pageSize > 0) ? 1 : 0));
   }
   
   public void resize(int newNumPages)
     throws IOException
   {
-    Page[] oldPages = pages;
-    if(newNumPages * BufferManager.pageSize < access.size()){ 
-      access.truncate(newNumPages * BufferManager.pageSize); 
+    if(readOnly){ throw new IOException("Can't resize read-only file "+file); }
+    if(compressed != null){
+      compressed.resize(newNumPages);
+      resizeTable(newNumPages);
+      headerDirty = true;
+      return;
+    }
+    long newNumBytes = headerSize + (long)newNumPages * pageSize;
+    if(access != null && newNumBytes < allocatedBytes && newNumPages < numPages){ 
+      access.truncate(newNumBytes); 
+      allocatedBytes = newNumBytes;
+    } else {
+      preallocate(newNumPages);
     }
 //    System.out.println("Resizing to " + newNumPages);
-    pages = new Page[newNumPages];
-    int i = 0;
-    if(oldPages != null) {
-      for(i = 0; i < Math.min(pages.length, oldPages.length); i++){
-        pages[i] = oldPages[i];
+    resizeTable(newNumPages);
+    headerDirty = true;
+  }
+  
+  //Make sure the file on disk has room for [newNumPages] pages, growing it a
+  //whole extent at a time.  The file is extended (sparsely) by writing its
+  //last byte; nothing is forced, the next flush() takes care of that.
+  protected void preallocate(int newNumPages)
+    throws IOException
+  {
+    long needed = headerSize + (long)newNumPages * pageSize;
+    if(needed <= allocatedBytes || headerSize == 0 || access == null){ return; }
+    long extentBytes = (long)Math.max(1, extentPages) * pageSize;
+    long newAllocated = headerSize + 
+      ((needed - headerSize + extentBytes - 1) / extentBytes) * extentBytes;
+    access.write(ByteBuffer.allocate(1), newAllocated - 1);
+    allocatedBytes = newAllocated;
+    unsynced = true;
+  }
+  
+  /**
+   * Grow the file on disk by at least [pages] pages whenever it has to grow.
+   **/
+  public void setExtentPages(int pages)
+  {
+    extentPages = Math.max(1, pages);
+  }
+  
+  /**
+   * Return a page that isn't in use: a page from the free list if there is 
+   * one (zeroed out), or else a new page at the end of the file.  Like 
+   * resize(), must not run concurrently with other accesses to the file.
+   **/
+  public int allocatePage()
+    throws BufferException, IOException
+  {
+    if(freeHead < 0 || headerSize == 0){
+      resize(numPages + 1);
+      return numPages - 1;
+    }
+    int page = freeHead;
+    ByteBuffer b = pin(page);
+    freeHead = b.getInt(0);
+    for(int i = 0; i < pageSize; i += 8){ b.putLong(i, 0); }
+    unpin(page, true);
+    headerDirty = true;
+    return page;
+  }
+  
+  /**
+   * Put [page] on the free list, to be handed out again by allocatePage().
+   * The list is threaded through the free pages themselves, and its head is
+   * kept in the file header, so it survives the file being closed.
+   **/
+  public void freePage(int page)
+    throws BufferException, IOException
+  {
+    if(headerSize == 0){ 
+      throw new BufferException("Files without a header have no free list"); 
+    }
+    ByteBuffer b = pin(page);
+    b.putInt(0, freeHead);
+    unpin(page, true);
+    freeHead = page;
+    headerDirty = true;
+  }
+  
+  //Set the size of the in-memory page table.
+  protected void resizeTable(int newNumPages)
+  {
+    int newChunks = (newNumPages + PAGE_CHUNK - 1) >>> PAGE_CHUNK_BITS;
+    AtomicReferenceArray<Page>[] directory = chunks;
+    if(directory == null || newChunks > directory.length){
+      //Grow the directory (only) by doubling; chunks are created on demand.
+      AtomicReferenceArray<Page>[] newDirectory = newDirectory(
+        Math.max(newChunks, (directory == null) ? 0 : directory.length * 2));
+      AtomicLongArray[] newWords = new AtomicLongArray[newDirectory.length];
+      AtomicLongArray newSummary = 
+        new AtomicLongArray((newDirectory.length + 63) >>> 6);
+      if(directory != null){
+        System.arraycopy(directory, 0, newDirectory, 0, directory.length);
+        System.arraycopy(dirtyWords, 0, newWords, 0, directory.length);
+        for(int i = 0; i < dirtyChunks.length(); i++){ 
+          newSummary.set(i, dirtyChunks.get(i)); 
+        }
+      }
+      dirtyWords = newWords;
+      dirtyChunks = newSummary;
+      chunks = newDirectory;
+    } else if(newNumPages < numPages){
+      //Forget pages past the new end of the file.
+      for(int c = newChunks; c < directory.length; c++){ 
+        directory[c] = null; 
+        dirtyWords[c] = null;
       }
+      AtomicReferenceArray<Page> last = 
+        (newChunks > 0) ? directory[newChunks - 1] : null;
+      if(last != null){
+        for(int i = newNumPages - ((newChunks - 1) << PAGE_CHUNK_BITS); 
+            i < PAGE_CHUNK; i++){
+          last.set(i, null);
+        }
+      }
+    }
+    numPages = newNumPages;
+  }
+  
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  static AtomicReferenceArray<Page>[] newDirectory(int size)
+  {
+    return (AtomicReferenceArray<Page>[])new AtomicReferenceArray[size];
+  }
+  
+  //Look up page [id], creating it on first access.  Safe to call from 
+  //several threads at once: only one Page is ever created for an id.
+  protected Page page(int id)
+  {
+    if(id < 0 || id >= numPages){
+      throw new ArrayIndexOutOfBoundsException(
+        "Page "+id+" of "+file+" ("+numPages+" pages)");
+    }
+    AtomicReferenceArray<Page>[] directory = chunks;
+    AtomicReferenceArray<Page> chunk = directory[id >>> PAGE_CHUNK_BITS];
+    if(chunk == null){ chunk = createChunk(directory, id >>> PAGE_CHUNK_BITS); }
+    int slot = id & (PAGE_CHUNK - 1);
+    Page p = chunk.get(slot);
+    if(p == null){
+      p = new Page(id);
+      if(!chunk.compareAndSet(slot, null, p)){ p = chunk.get(slot); }
     }
-    for(; i < pages.length; i++){
-      pages[i] = new Page(i);
+    return p;
+  }
+  
+  private synchronized AtomicReferenceArray<Page> createChunk(
+      AtomicReferenceArray<Page>[] directory, int c)
+  {
+    if(directory[c] == null){ 
+      directory[c] = new AtomicReferenceArray<Page>(PAGE_CHUNK); 
     }
-    access.force(true);
+    return directory[c];
+  }
+  
+  //Record that page [id] may be dirty.  Called after the page's dirty flag 
+  //is set: flush() clears a page's bit before it looks at the flag, so a page
+  //dirtied during a flush is either written by it, or keeps its bit.
+  protected void markDirty(int id)
+  {
+    int c = id >>> PAGE_CHUNK_BITS;
+    AtomicLongArray words = dirtyWords[c];
+    if(words == null){ words = createDirtyWords(c); }
+    setBit(words, id & (PAGE_CHUNK - 1));
+    setBit(dirtyChunks, c);
+  }
+  
+  private synchronized AtomicLongArray createDirtyWords(int c)
+  {
+    AtomicLongArray[] words = dirtyWords;
+    if(words[c] == null){ words[c] = new AtomicLongArray(PAGE_CHUNK >>> 6); }
+    return words[c];
+  }
+  
+  static void setBit(AtomicLongArray bits, int i)
+  {
+    long mask = 1L << (i & 63);
+    long word;
+    do {
+      word = bits.get(i >>> 6);
+      if((word & mask) != 0){ return; }
+    } while(!bits.compareAndSet(i >>> 6, word, word | mask));
+  }
+  
+  static void clearBit(AtomicLongArray bits, int i)
+  {
+    long mask = 1L << (i & 63);
+    long word;
+    do {
+      word = bits.get(i >>> 6);
+      if((word & mask) == 0){ return; }
+    } while(!bits.compareAndSet(i >>> 6, word, word & ~mask));
   }
   
   public ByteBuffer getBuffer(int page)
     throws BufferException, IOException
   {
-    return pages[page].getBuffer();
+    if(mapped != null){ return mapped[page]; }
+    return page(page).getBuffer();
   }
   
   public ByteBuffer safeGetBuffer(int page)
@@ -122,13 +747,15 @@ public class ManagedFile {
   public void dirty(int page)
     throws BufferException
   {
-    pages[page].dirty();
+    if(readOnly){ throw new BufferException("Can't write to read-only file "+file); }
+    page(page).dirty();
   }
   
   public ByteBuffer pin(int page)
     throws BufferException, IOException
   {
-    return pages[page].pin();
+    if(mapped != null){ return mapped[page]; }
+    return page(page).pin();
   }
   
   public ByteBuffer safePin(int page)
@@ -138,6 +765,53 @@ public class ManagedFile {
     return pin(page);
   }
   
+  /**
+   * Pin page [page] without waiting for it to be read.  If the page is 
+   * resident, the returned future is already complete.  Otherwise the page 
+   * is read by one of ASYNC_IO_THREADS shared I/O threads, and the future 
+   * completes (with the pinned buffer, or with whatever pin() threw) once 
+   * the read is done.  If the future is cancelled (or otherwise completed) 
+   * before then, the page is not left pinned.
+   **/
+  public CompletableFuture<ByteBuffer> pinAsync(int page)
+  {
+    final CompletableFuture<ByteBuffer> ret = new CompletableFuture<ByteBuffer>();
+    final Page p;
+    try {
+      if(mapped != null){
+        ret.complete(mapped[page]);
+        return ret;
+      }
+      p = page(page);
+    } catch(ArrayIndexOutOfBoundsException e) {
+      ret.completeExceptionally(e);
+      return ret;
+    }
+    ByteBuffer resident = p.pinIfResident();
+    if(resident != null){
+      ret.complete(resident);
+      return ret;
+    }
+    asyncIO().execute(new Runnable() {
+      public void run()
+      {
+        if(ret.isDone()){ return; }
+        ByteBuffer buffer;
+        try {
+          buffer = p.pin();
+        } catch(Throwable e) {
+          ret.completeExceptionally(e);
+          return;
+        }
+        //nobody is going to unpin a page they never got
+        if(!ret.complete(buffer)){
+          try { p.unpin(); } catch(BufferException e) {}
+        }
+      }
+    });
+    return ret;
+  }
+  
   public void unpin(int page, boolean dirty)
     throws BufferException
   {
@@ -148,18 +822,488 @@ public class ManagedFile {
   public void unpin(int page)
     throws BufferException
   {
-    pages[page].unpin();
+    if(mapped != null){ return; }
+    page(page).unpin();
   }
   
+  //Optimistic attempts readOptimistic() makes before falling back to a pin.
+  static final int OPTIMISTIC_ATTEMPTS = 4;
+  
+  /**
+   * Run [reader] over page [page] without pinning it, if the page is 
+   * resident and unpinned: the frame's version stamp is checked after the 
+   * read, and the read is retried if the frame was evicted, or pinned (and 
+   * so possibly modified) meanwhile.  After a few failed attempts, or if the
+   * page is not resident or is pinned, the page is pinned for the read 
+   * instead.  Any Exception [reader] throws against a frame that changed 
+   * underneath it is ignored, and the read is retried; Errors are not (see
+   * PageReader).
+   **/
+  public <T, E extends Exception> T readOptimistic(int page, 
+                                                   PageReader<T, E> reader)
+    throws E, BufferException, IOException
+  {
+    if(mapped != null){ return reader.read(mapped[page]); }
+    Page p = page(page);
+    for(int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++){
+      int frame = p.bufferPage;
+      if(frame < 0){ break; }
+      long stamp = manager.readStamp(frame);
+      if(stamp == 0 || !manager.isOwnedBy(frame, p) || p.bufferPage != frame){
+        continue;
+      }
+      //A pin taken from here on bumps the stamp; one taken before may be
+      //modifying the page right now.
+      if(manager.isPinned(frame)){ break; }
+      T ret;
+      try {
+        ret = reader.read(manager.get(frame));
+      } catch(Exception e) {
+        if(manager.validate(frame, stamp)){ throw e; }
+        continue;
+      }
+      if(manager.validate(frame, stamp)){
+        stats.hits.increment();
+        manager.touchLazily(frame);
+        return ret;
+      }
+    }
+    return readPinned(page, reader);
+  }
+  
+  /**
+   * Run [reader] over page [page], holding a pin on it for the duration.
+   **/
+  public <T, E extends Exception> T readPinned(int page, 
+                                               PageReader<T, E> reader)
+    throws E, BufferException, IOException
+  {
+    ByteBuffer buffer = pin(page);
+    try {
+      return reader.read(buffer);
+    } finally {
+      unpin(page);
+    }
+  }
+  
+  /**
+   * Pin pages [startPage] through [startPage + count - 1], and return their
+   * buffers.  Runs of pages that are not resident are read with a single 
+   * scatter read each, rather than one read per page.  Each page must be 
+   * unpinned again, e.g., with unpinRange().
+   **/
+  public ByteBuffer[] pinRange(int startPage, int count)
+    throws BufferException, IOException
+  {
+    ByteBuffer[] ret = new ByteBuffer[count];
+    if(mapped != null){
+      System.arraycopy(mapped, startPage, ret, 0, count);
+      return ret;
+    }
+    Page[] run = new Page[count];
+    for(int i = 0; i < count; i++){ run[i] = page(startPage + i); }
+    int pinned = 0;
+    boolean done = false;
+    try {
+      while(pinned < count){
+        int loaded = lockRun(run, pinned, pinned, 
+                             Math.min(count, pinned + MAX_READ_RUN));
+        if(loaded == 0){
+          //resident (or just loaded by someone else)
+          ret[pinned] = run[pinned].pin();
+          pinned++;
+          continue;
+        }
+        stats.pins.add(loaded);
+        stats.misses.add(loaded);
+        for(int i = 0; i < loaded; i++, pinned++){ 
+          ret[pinned] = manager.get(run[pinned].bufferPage); 
+        }
+      }
+      done = true;
+    } finally {
+      if(!done){
+        for(int i = 0; i < pinned; i++){ run[i].unpin(); }
+      }
+    }
+    return ret;
+  }
+  
+  public void unpinRange(int startPage, int count, boolean dirty)
+    throws BufferException
+  {
+    for(int i = startPage; i < startPage + count; i++){ unpin(i, dirty); }
+  }
+  
+  //Longest run of adjacent pages read with a single scatter read.
+  static final int MAX_READ_RUN = 64;
+  
+  //Take the monitors of pages [from], [from+1], ... in order, for as long as
+  //the pages are not resident (and before [to]), then read all of those 
+  //pages in at once.  Monitors are always taken in page order, so two 
+  //threads loading overlapping runs can't deadlock.  Returns the number of 
+  //pages loaded; they are left pinned.
+  protected int lockRun(Page[] pages, int from, int i, int to)
+    throws BufferException, IOException
+  {
+    if(i < to){
+      synchronized(pages[i]){
+        if(!pages[i].isAllocated()){ return lockRun(pages, from, i + 1, to); }
+      }
+    }
+    return readRun(pages, from, i);
+  }
+  
+  //Read non-resident pages [from] through [to - 1] into new, pinned frames.
+  //The caller holds all of their monitors.
+  protected int readRun(Page[] pages, int from, int to)
+    throws BufferException, IOException
+  {
+    int n = to - from;
+    if(n == 0){ return 0; }
+    int[] frames = new int[n];
+    ByteBuffer[] buffers = new ByteBuffer[n];
+    int allocated = 0;
+    boolean done = false;
+    try {
+      for(; allocated < n; allocated++){
+        pages[from + allocated].dirty = false;
+        frames[allocated] = manager.allocate(pages[from + allocated], true, quota);
+        buffers[allocated] = manager.get(frames[allocated]);
+        buffers[allocated].limit(pageSize);
+        buffers[allocated].position(0);
+      }
+      FileChannel channel = access;
+      if(channel == null){
+        for(ByteBuffer b : buffers){ zero(b); }
+      } else if(compressed != null){
+        int[] ids = new int[n];
+        for(int i = 0; i < n; i++){ ids[i] = pages[from + i].id; }
+        compressed.read(ids, buffers, n);
+      } else {
+        synchronized(channel){
+          channel.position(pages[from].position());
+          long remaining = (long)n * pageSize;
+          while(remaining > 0){
+            long bytesRead = channel.read(buffers, 0, n);
+            if(bytesRead < 0){ break; }
+            remaining -= bytesRead;
+          }
+        }
+      }
+      done = true;
+    } finally {
+      if(!done){
+        for(int i = 0; i < allocated; i++){ manager.unpin(frames[i]); }
+      }
+    }
+    for(int i = 0; i < n; i++){ pages[from + i].bufferPage = frames[i]; }
+    if(access != null){ stats.pagesRead.add(n); }
+    return n;
+  }
+  
+  //Fill a page that was never written out with zeroes, as reading it from 
+  //(a sparse region of) the file would.
+  static void zero(ByteBuffer buffer)
+  {
+    for(int i = 0; i < buffer.limit(); i += 8){ buffer.putLong(i, 0); }
+  }
+  
+  //Longest run of adjacent pages written with a single gathering write.
+  static final int MAX_WRITE_RUN = 256;
+  
   public void flush()
     throws BufferException, IOException
   {
-    for(Page p : pages){ p.flush(); }
+    //A temp file that hasn't spilled keeps its pages in the pool.
+    if(access == null){ return; }
+    Page[] run = new Page[MAX_WRITE_RUN];
+    ByteBuffer[] buffers = new ByteBuffer[MAX_WRITE_RUN];
+    int runLength = 0;
+    //The bitmap is in page id order, so adjacent dirty pages form runs.  Each
+    //bit is cleared before its page is looked at (see markDirty()).
+    AtomicReferenceArray<Page>[] directory = chunks;
+    AtomicLongArray[] dirtyWords = this.dirtyWords;
+    AtomicLongArray dirtyChunks = this.dirtyChunks;
+    int limit = numPages;
+    for(int s = 0; s < dirtyChunks.length(); s++){
+      long chunkBits = dirtyChunks.get(s);
+      while(chunkBits != 0){
+        int c = (s << 6) + Long.numberOfTrailingZeros(chunkBits);
+        chunkBits &= chunkBits - 1;
+        clearBit(dirtyChunks, c);
+        AtomicReferenceArray<Page> chunk = directory[c];
+        AtomicLongArray words = dirtyWords[c];
+        if(chunk == null || words == null){ continue; }
+        for(int w = 0; w < words.length(); w++){
+          long bits = words.get(w);
+          while(bits != 0){
+            int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            clearBit(words, i);
+            Page p = chunk.get(i);
+            if(p == null || p.id >= limit){ continue; }
+            if(runLength > 0 && 
+               (p.id != run[runLength-1].id + 1 || runLength == MAX_WRITE_RUN)){
+              writeRun(run, buffers, runLength);
+              runLength = 0;
+            }
+            ByteBuffer buffer = p.holdIfDirty();
+            if(buffer != null){
+              run[runLength] = p;
+              buffers[runLength] = buffer;
+              runLength++;
+            }
+          }
+        }
+      }
+    }
+    writeRun(run, buffers, runLength);
+    if(compressed != null && compressed.writeMap(numPages)){
+      //the map has to be on disk before the header points at it
+      access.force(true);
+      headerDirty = true;
+    }
+    if(headerDirty){
+      writeHeader();
+      unsynced = true;
+    }
+    if(unsynced){
+      unsynced = false;
+      //nobody needs a temp file to survive a crash
+      if(!temp){ access.force(true); }
+    }
+  }
+  
+  //Write out a run of adjacent, held pages with one gathering write, then
+  //let go of them.  Pages whose write fails are marked dirty again.
+  protected void writeRun(Page[] run, ByteBuffer[] buffers, int runLength)
+    throws BufferException, IOException
+  {
+    if(runLength == 0){ return; }
+    IOException error = null;
+    try {
+      if(compressed != null){
+        for(int i = 0; i < runLength; i++){ 
+          compressed.write(run[i].id, buffers[i]); 
+        }
+      } else {
+        synchronized(access){
+          access.position(run[0].position());
+          long remaining = (long)runLength * pageSize;
+          while(remaining > 0){
+            remaining -= access.write(buffers, 0, runLength);
+          }
+        }
+      }
+      unsynced = true;
+      stats.pagesWritten.add(runLength);
+    } catch(IOException e) {
+      error = e;
+    }
+    for(int i = 0; i < runLength; i++){
+      if(error != null){ 
+        run[i].dirty = true; 
+        markDirty(run[i].id);
+      }
+      manager.release(run[i].bufferPage);
+      buffers[i] = null;
+      run[i] = null;
+    }
+    if(error != null){ throw error; }
+  }
+  
+  /**
+   * If [sync] is false, pages written out because they were evicted are not 
+   * forced to disk individually.  Durability is deferred to the next flush()
+   * (which happens at the latest when the file is closed).
+   **/
+  public void setSyncOnEvict(boolean sync)
+  {
+    syncOnEvict = sync;
+  }
+  
+  /**
+   * Start loading pages [fromPage] through [fromPage + count - 1] into the 
+   * buffer pool in the background, and return immediately.  Pages that are
+   * already resident are skipped.  A pin() or getBuffer() of a page that is
+   * still being read waits for the read to finish.  Prefetching is only a 
+   * hint: it never takes more than a quarter of the pool at once, and gives
+   * up quietly if every frame is pinned, or if PREFETCH_QUEUE requests are 
+   * already waiting.  Prefetched pages are loaded like any other: they evict
+   * whatever the pool's policy picks to make room.
+   **/
+  public void prefetch(int fromPage, int count)
+  {
+    if(access == null){ return; }
+    final int from = Math.max(0, fromPage);
+    final int to = Math.min(numPages, 
+                            from + Math.min(count, Math.max(1, manager.size() / 4)));
+    if(from >= to){ return; }
+    final Page[] targets = new Page[to - from];
+    for(int i = from; i < to; i++){ targets[i - from] = page(i); }
+    prefetcher().execute(new Runnable() {
+      public void run()
+      {
+        try {
+          int i = 0;
+          while(i < targets.length){
+            int loaded = lockRun(targets, i, i, 
+                                 Math.min(targets.length, i + MAX_READ_RUN));
+            if(loaded == 0){ i++; continue; }
+            for(int j = i; j < i + loaded; j++){ 
+              manager.unpin(targets[j].bufferPage); 
+            }
+            i += loaded;
+          }
+        } catch(BufferException e) {
+          //the pool is full of pinned pages; the reader will load on demand
+        } catch(IOException e) {
+          //the reader will see the error when it loads the page itself
+        }
+      }
+    });
+  }
+  
+  /**
+   * The ids of this file's pages that currently have a frame in the buffer 
+   * pool, in page order.  Mapped files have no frames.
+   **/
+  public int[] residentPages()
+  {
+    if(mapped != null){ return new int[0]; }
+    int[] ret = new int[64];
+    int n = 0;
+    AtomicReferenceArray<Page>[] directory = chunks;
+    int limit = numPages;
+    for(int c = 0; c < directory.length && (c << PAGE_CHUNK_BITS) < limit; c++){
+      AtomicReferenceArray<Page> chunk = directory[c];
+      if(chunk == null){ continue; }
+      for(int i = 0; i < PAGE_CHUNK; i++){
+        Page p = chunk.get(i);
+        if(p == null || p.id >= limit || !p.isAllocated()){ continue; }
+        if(n == ret.length){ ret = Arrays.copyOf(ret, n * 2); }
+        ret[n++] = p.id;
+      }
+    }
+    return Arrays.copyOf(ret, n);
+  }
+  
+  /**
+   * Read pages [pages] (sorted by page id) into the buffer pool, and return 
+   * the number of pages read.  Runs of adjacent pages are read with one 
+   * scatter read each, and pages that are already resident, or that are past
+   * the end of the file, are skipped.  Unlike prefetch(), the pages are read
+   * on the calling thread, and have all been read when warm() returns.
+   **/
+  public int warm(int[] pages)
+    throws BufferException, IOException
+  {
+    if(mapped != null || access == null){ return 0; }
+    int loaded = 0;
+    int i = 0;
+    while(i < pages.length && pages[i] < numPages){
+      if(pages[i] < 0){ i++; continue; }
+      int start = i;
+      i++;
+      while(i < pages.length && i - start < MAX_READ_RUN && 
+            pages[i] == pages[i-1] + 1 && pages[i] < numPages){
+        i++;
+      }
+      Page[] run = new Page[i - start];
+      for(int j = 0; j < run.length; j++){ run[j] = page(pages[start + j]); }
+      int j = 0;
+      while(j < run.length){
+        int n = lockRun(run, j, j, run.length);
+        if(n == 0){ j++; continue; }
+        for(int k = j; k < j + n; k++){ manager.unpin(run[k].bufferPage); }
+        j += n;
+        loaded += n;
+      }
+    }
+    return loaded;
+  }
+  
+  static synchronized ExecutorService asyncIO()
+  {
+    if(asyncIO == null){
+      asyncIO = Executors.newFixedThreadPool(ASYNC_IO_THREADS, new ThreadFactory() {
+        public Thread newThread(Runnable r)
+        {
+          Thread t = new Thread(r, "ManagedFile async I/O");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return asyncIO;
+  }
+  
+  static synchronized ExecutorService prefetcher()
+  {
+    if(prefetcher == null){
+      prefetcher = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE), new ThreadFactory() {
+          public Thread newThread(Runnable r)
+          {
+            Thread t = new Thread(r, "ManagedFile prefetch");
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+    return prefetcher;
+  }
+  
+  /**
+   * Limit the read-ahead window that sequential scans (DatumStreamIterator) 
+   * may use on this file to [pages] pages.  0 disables read-ahead.
+   **/
+  public void setReadAhead(int pages)
+  {
+    readAhead = Math.max(0, pages);
+  }
+  
+  public int getReadAhead()
+  {
+    return readAhead;
+  }
+  
+  /**
+   * Charge the frames this file loads pages into to [quota] from now on.  
+   * Pages already resident stay charged to the quota they were loaded under.
+   **/
+  public void setQuota(BufferQuota quota)
+  {
+    this.quota = quota;
+  }
+  
+  public BufferQuota getQuota()
+  {
+    return quota;
+  }
+  
+  public File getFile()
+  {
+    return file;
+  }
+  
+  /**
+   * A snapshot of this file's I/O counters.
+   **/
+  public BufferStats getStats()
+  {
+    return stats.snapshot();
+  }
+  
+  public void resetStats()
+  {
+    stats.reset();
   }
   
   public int size()
   {
-    return pages.length;
+    return (mapped != null) ? mapped.length : numPages;
   }
   
   public void ensureSize(int desiredSize)
@@ -179,10 +1323,10 @@ public class ManagedFile {
     }
   }
 
-  protected class Page implements EvictionCallback {
+  protected class Page implements WriteBackCallback {
     int id;
-    int bufferPage;
-    boolean dirty;
+    volatile int bufferPage;
+    volatile boolean dirty;
     
     public Page(int id)
     {
@@ -194,84 +1338,224 @@ public class ManagedFile {
     
     protected boolean isAllocated() { return bufferPage >= 0; }
     
-    protected void allocate()
-      throws BufferException
+    //Read the page into a new frame.  The frame comes back pinned; the caller
+    //must hold this page's monitor.
+    protected ByteBuffer load()
+      throws BufferException, IOException
     {
       if(isAllocated()){ 
         throw new BufferException("Bug: allocating an already allocated page");
       }
-      bufferPage = manager.allocate(this);
+      dirty = false;
+      int frame = manager.allocate(this, true, quota);
+//      System.out.println("Reading page " + id + " @ " + frame);
+      ByteBuffer buffer = manager.get(frame);
+      buffer.limit(pageSize);
+      buffer.position(0);
+      FileChannel channel = access;
+      if(channel == null){
+        zero(buffer);
+        bufferPage = frame;
+        return buffer;
+      }
+      try {
+        if(compressed != null){
+          compressed.read(id, buffer);
+        } else {
+          channel.read(buffer, position());
+        }
+      } catch(IOException e) {
+        manager.unpin(frame);
+        throw e;
+      }
+      stats.pagesRead.increment();
+      bufferPage = frame;
+      return buffer;
     }
     
     public ByteBuffer getBuffer()
       throws BufferException, IOException
     {
-      ByteBuffer buffer;
-      if(!isAllocated()){ 
-        dirty = false;
-        allocate();
-//        System.out.println("Reading page " + id + " @ " + bufferPage);
-        buffer = manager.get(bufferPage);
-        buffer.position(0);
-        int bytesRead = access.read(buffer, position());
-//        if(bytesRead < BufferManager.pageSize) {
-//          System.out.println("ERROR. Insufficient read data (Only read "+bytesRead+")");
-//        }
-      } else {
-        buffer = manager.get(bufferPage);
+      synchronized(this){
+        if(!isAllocated()){ 
+          stats.misses.increment();
+          ByteBuffer buffer = load();
+          manager.unpin(bufferPage);
+          return buffer;
+        }
+        stats.hits.increment();
+        //An evicting thread can't take the frame away until it gets our 
+        //monitor, so the frame still holds this page.
+        manager.touch(bufferPage);
+        return manager.get(bufferPage);
       }
-      manager.touch(bufferPage);
-      return buffer;
     }
     
     public void evict(int page)
       throws EvictionFailure
     { 
-      try { flush(); bufferPage = -1; } 
-      catch(Exception e) { throw new EvictionFailure(e); }
+      synchronized(this){
+        if(bufferPage != page){ return; }
+        try { 
+          if(dirty && !discarded){ stats.writeBacks.increment(); }
+          flush(syncOnEvict); 
+          bufferPage = -1; 
+        } catch(Exception e) { throw new EvictionFailure(e); }
+        stats.evictions.increment();
+      }
     }
     
-    public void flush()
+    public synchronized void flush(boolean sync)
       throws BufferException, IOException
     {
 //      System.out.println("Flushing page " + id + " @ " + bufferPage);
+      if(discarded){ dirty = false; }
       if(dirty && (bufferPage >= 0)){
+        FileChannel channel = (access != null) ? access : spill();
         ByteBuffer buffer = manager.get(bufferPage);
         buffer.position(0);
-        int bytesWritten = access.write(buffer, position());
-//        if(bytesWritten < BufferManager.pageSize) {
-//          System.out.println("ERROR. Insufficient written data (only "+bytesWritten+" bytes)");
-//        }
-        access.force(true);
+        if(compressed != null){
+          compressed.write(id, buffer);
+        } else {
+          channel.write(buffer, position());
+        }
+        if(sync){ channel.force(true); }
+        else { unsynced = true; }
+        dirty = false;
+        stats.pagesWritten.increment();
+      }
+    }
+    
+    //Hold the frame of a dirty page for flushing, and hand back a private
+    //view of it.  The dirty bit is cleared now; anyone who modifies the page
+    //from here on will set it again.
+    protected synchronized ByteBuffer holdIfDirty()
+    {
+      if(!dirty || !isAllocated() || !manager.hold(bufferPage, this)){ 
+        return null; 
+      }
+      dirty = false;
+      ByteBuffer buffer = manager.get(bufferPage).duplicate();
+      buffer.limit(pageSize);
+      buffer.position(0);
+      return buffer;
+    }
+    
+    public boolean isDirty(int page)
+    {
+      return dirty && bufferPage == page;
+    }
+    
+    //Write the page out without forcing it or giving up the frame.  Pages are
+    //only modified while pinned, so the frame is claimed for the write (see
+    //BufferManager.claim()): not even pinIfResident(), which doesn't take our
+    //monitor, can pin it until the write is done.
+    public boolean writeBack(int page)
+      throws BufferException
+    {
+      synchronized(this){
+        //Temp pages are only written when they have to be evicted (they are
+        //likely to be discarded first), even once the file has spilled.
+        if(!dirty || bufferPage != page || temp || !manager.claim(page, this)){ 
+          return false; 
+        }
         dirty = false;
+        ByteBuffer buffer = manager.get(bufferPage);
+        buffer.position(0);
+        try {
+          if(compressed != null){
+            compressed.write(id, buffer);
+          } else {
+            access.write(buffer, position());
+          }
+        } catch(IOException e) {
+          dirty = true;
+          markDirty(id);
+          throw new BufferException("Write-back of page "+id+" failed", e);
+        } finally {
+          manager.unclaim(page);
+        }
+        unsynced = true;
+        stats.writeBacks.increment();
+        stats.pagesWritten.increment();
+        return true;
+      }
+    }
+    
+    //Forget the page without writing it, freeing its frame if it can.
+    protected synchronized void discard()
+    {
+      dirty = false;
+      int frame = bufferPage;
+      if(frame < 0 || !manager.isOwnedBy(frame, this)){ return; }
+      try {
+        manager.free(frame);
+        bufferPage = -1;
+      } catch(BufferException e) {
+        //still pinned; the last unpin() frees it
       }
     }
     
     public void dirty()
       throws BufferException
     {
+      //a discarded page is never written, so there's nothing to remember
+      if(discarded){ return; }
       dirty = true;
+      markDirty(id);
     }
     
     public ByteBuffer pin()
       throws BufferException, IOException
     {
-      ByteBuffer buff = getBuffer();
-      manager.pin(bufferPage);
-      return buff;
+      stats.pins.increment();
+      while(true){
+        synchronized(this){
+          if(!isAllocated()){ 
+            stats.misses.increment();
+            return load(); 
+          }
+          if(manager.tryPin(bufferPage, this)){ 
+            stats.hits.increment();
+            return manager.get(bufferPage); 
+          }
+        }
+        //Another thread is evicting this page and needs our monitor to finish.
+        Thread.yield();
+      }
+    }
+    
+    //Pin the page if it is resident, without taking our monitor (which a 
+    //thread reading the page in holds until the read is done).  Returns null
+    //if the page is not resident, or is being loaded, evicted or written 
+    //back.
+    protected ByteBuffer pinIfResident()
+    {
+      int frame = bufferPage;
+      if(frame < 0 || !manager.tryPin(frame, this)){ return null; }
+      //bufferPage is only set once the page has been read in, and the pin
+      //keeps the frame from being evicted from here on.
+      if(bufferPage != frame){
+        try { manager.unpin(frame); } catch(BufferException e) {}
+        return null;
+      }
+      stats.pins.increment();
+      stats.hits.increment();
+      return manager.get(frame);
     }
     
     public void unpin()
       throws BufferException
     {
       manager.unpin(bufferPage);
+      if(discarded){ discard(); }
     }
     
     public long position()
     {
-      long position = BufferManager.pageSize;
+      long position = pageSize;
       position *= (long)id;
-      return position;
+      return headerSize + position;
     }
   }
 }
\ No newline at end of file
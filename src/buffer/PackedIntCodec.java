@@ -0,0 +1,103 @@
+/**
+ * A PageCodec for pages made up of (mostly small) 4 byte integers, as
+ * DatumSerialization writes them.  The page is read as a sequence of
+ * big-endian ints, each of which is written as a zig-zag varint: 1 byte for
+ * values from -64 to 63, 2 bytes up to +/-8192, and so on, up to 5 bytes.
+ * Runs of zero ints (e.g., the unused end of a page) are written as a 0 byte
+ * followed by the length of the run, as a varint.
+ *
+ * Small ints and pointers shrink to a quarter of their size; floats and
+ * strings may grow by up to a quarter, in which case compress() gives up and
+ * the page is stored as is.
+ **/
+package edu.buffalo.cse.sql.buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class PackedIntCodec implements PageCodec {
+
+  public static final int ID = 1;
+
+  public int getId()
+  {
+    return ID;
+  }
+
+  public int compress(ByteBuffer page, byte[] out)
+  {
+    int words = page.limit() >>> 2;
+    int pos = 0;
+    int i = 0;
+    while(i < words){
+      //a varint is at most 5 bytes; a zero run takes one more
+      if(pos + 6 > out.length){ return -1; }
+      int word = page.getInt(i << 2);
+      if(word == 0){
+        int run = 1;
+        while(i + run < words && page.getInt((i + run) << 2) == 0){ run++; }
+        out[pos++] = 0;
+        pos = putVarint(out, pos, run);
+        i += run;
+      } else {
+        pos = putVarint(out, pos, (word << 1) ^ (word >> 31));
+        i++;
+      }
+    }
+    return pos;
+  }
+
+  public void decompress(byte[] in, int offset, int length, ByteBuffer page)
+    throws IOException
+  {
+    int words = page.limit() >>> 2;
+    int pos = offset;
+    int end = offset + length;
+    int i = 0;
+    while(pos < end){
+      //read a varint
+      int value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        if(pos >= end || shift > 28){
+          throw new IOException("Corrupt compressed page");
+        }
+        b = in[pos++];
+        value |= (b & 0x7f) << shift;
+        shift += 7;
+      } while(b < 0);
+      if(value == 0){
+        int run = 0;
+        shift = 0;
+        do {
+          if(pos >= end || shift > 28){
+            throw new IOException("Corrupt compressed page");
+          }
+          b = in[pos++];
+          run |= (b & 0x7f) << shift;
+          shift += 7;
+        } while(b < 0);
+        if(run <= 0 || i + run > words){
+          throw new IOException("Corrupt compressed page");
+        }
+        for(int j = 0; j < run; j++, i++){ page.putInt(i << 2, 0); }
+      } else {
+        if(i >= words){ throw new IOException("Corrupt compressed page"); }
+        page.putInt(i << 2, (value >>> 1) ^ -(value & 1));
+        i++;
+      }
+    }
+    if(i != words){ throw new IOException("Corrupt compressed page"); }
+  }
+
+  static int putVarint(byte[] out, int pos, int value)
+  {
+    while((value & ~0x7f) != 0){
+      out[pos++] = (byte)((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out[pos++] = (byte)value;
+    return pos;
+  }
+}
@@ -0,0 +1,28 @@
+/**
+ * A page compression scheme, for ManagedFiles stored compressed on disk (see
+ * FileManager.setCompression()).  Frames in the buffer pool always hold
+ * uncompressed pages; a codec only runs when a page is read or written.
+ *
+ * getId():      A number identifying the codec in the headers of the files it
+ *               compressed.  Must be unique, and must never change.
+ * compress():   Compress [page] (from 0 to its limit) into [out], and return
+ *               the number of bytes used, or -1 if the page doesn't fit.
+ * decompress(): Expand [length] bytes of [in], starting at [offset], into 
+ *               [page] (from 0 to its limit), overwriting all of it.
+ *
+ * Codecs are shared by every thread using a file, and so must not keep any
+ * state between calls.
+ **/
+package edu.buffalo.cse.sql.buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public interface PageCodec {
+
+  public int getId();
+  public int compress(ByteBuffer page, byte[] out);
+  public void decompress(byte[] in, int offset, int length, ByteBuffer page)
+    throws IOException;
+
+}
@@ -0,0 +1,23 @@
+/**
+ * A read-only computation over the contents of a single page, for 
+ * ManagedFile.readOptimistic() and readPinned().
+ *
+ * Under readOptimistic(), read(page) may be run against a frame that is 
+ * being evicted or rewritten by another thread at the same time, in which 
+ * case its result (or anything it throws) is thrown away and it is run 
+ * again.  It should therefore only look at [page], not keep any reference to
+ * it, and have no side effects other than on state it resets itself.  Any
+ * length or count it reads from the page must be checked against the page's
+ * size before it is used (as DatumBuffer.length() and DatumSerialization's
+ * string lengths are), so that garbage shows up as an exception rather than
+ * as a huge allocation or a runaway loop.
+ **/
+package edu.buffalo.cse.sql.buffer;
+
+import java.nio.ByteBuffer;
+
+public interface PageReader<T, E extends Exception> {
+  
+  public T read(ByteBuffer page) throws E;
+  
+}
@@ -0,0 +1,123 @@
+/**
+ * A scan-resistant 2Q eviction policy for the BufferManager.
+ *
+ * Frames are kept on one of two queues:
+ *
+ * A1: Frames that have been referenced only once since they were loaded,
+ *     in FIFO order.  Pages read by a sequential scan land here and stay here.
+ * Am: Frames that have been referenced again after they were loaded, in LRU
+ *     order.  Root and internal index pages quickly end up here.
+ *
+ * A frame counts as referenced again when it is touched, or when it is put
+ * back into consideration after having been pinned and unpinned.  Victims
+ * come from the head of A1 as long as A1 holds more than its share
+ * (kin, by default a quarter) of the candidate frames; otherwise from the head
+ * of Am.  A one-time sweep over a large file therefore only cycles through A1,
+ * and cannot flush the frequently reused pages in Am.
+ *
+ * Unlike the original 2Q, there is no A1out queue of recently evicted page
+ * ids: the policy only ever sees frame ids, and those are reused for
+ * unrelated pages after an eviction.  A frame's history is forgotten as soon
+ * as it is selected for eviction, or freed.
+ **/
+package edu.buffalo.cse.sql.buffer;
+
+import java.util.LinkedHashSet;
+
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+  static final byte NEW = 0;
+  static final byte ONCE = 1;
+  static final byte AGAIN = 2;
+
+  LinkedHashSet<Integer> a1;
+  LinkedHashSet<Integer> am;
+  //Per-frame history; survives remove() so that a frame which is pinned and
+  //later unpinned goes back on the queue it came from.
+  byte[] history;
+  double kin;
+
+  public TwoQueueEvictionPolicy()
+  {
+    this(64, 0.25);
+  }
+
+  public TwoQueueEvictionPolicy(int pages)
+  {
+    this(pages, 0.25);
+  }
+
+  public TwoQueueEvictionPolicy(int pages, double kin)
+  {
+    this.a1 = new LinkedHashSet<Integer>();
+    this.am = new LinkedHashSet<Integer>();
+    this.history = new byte[Math.max(1, pages)];
+    this.kin = kin;
+  }
+
+  protected void ensureCapacity(int page)
+  {
+    if(page < history.length){ return; }
+    byte[] newHistory = new byte[Math.max(page+1, history.length * 2)];
+    System.arraycopy(history, 0, newHistory, 0, history.length);
+    history = newHistory;
+  }
+
+  protected void promote(int page)
+  {
+    a1.remove(page);
+    am.remove(page);
+    am.add(page);
+    history[page] = AGAIN;
+  }
+
+  public void add(int page)
+  {
+    ensureCapacity(page);
+    switch(history[page]){
+      case NEW:
+        history[page] = ONCE;
+        a1.add(page);
+        break;
+      case ONCE:
+        //back from a pin: that's a second reference
+        if(!a1.contains(page)){ promote(page); }
+        break;
+      case AGAIN:
+        promote(page);
+        break;
+    }
+  }
+
+  public void remove(int page)
+  {
+    a1.remove(page);
+    am.remove(page);
+  }
+
+  //The frame will next hold some unrelated page, which starts out NEW.
+  public void free(int page)
+  {
+    remove(page);
+    if(page < history.length){ history[page] = NEW; }
+  }
+
+  public void touch(int page)
+  {
+    if(page >= history.length){ return; }
+    if(a1.contains(page) || am.contains(page)){ promote(page); }
+  }
+
+  public int selectCandidate()
+  {
+    int page;
+    if(a1.size() == 0 && am.size() == 0){ return -1; }
+    if(am.size() == 0 || a1.size() > kin * (a1.size() + am.size())){
+      page = a1.iterator().next();
+    } else {
+      page = am.iterator().next();
+    }
+    history[page] = NEW;
+    return page;
+  }
+
+}
@@ -0,0 +1,20 @@
+/**
+ * An EvictionCallback for frames that can be written back to disk ahead of
+ * their eviction.  Used by the BufferCleaner to find dirty frames, and to 
+ * write them out without evicting them.
+ *
+ * isDirty(frame) should return true if [frame] holds data that has not yet 
+ *                been written to disk.
+ *
+ * writeBack(frame) should write [frame] to disk if it is dirty and unpinned,
+ *                leaving it resident but clean.  Returns true if the frame
+ *                was written.
+ **/
+package edu.buffalo.cse.sql.buffer;
+
+public interface WriteBackCallback extends EvictionCallback {
+  
+  public boolean isDirty(int frame);
+  public boolean writeBack(int frame) throws BufferException;
+  
+}
@@ -44,24 +44,50 @@
  *            ByteBuffer.  The record is assumed to follow the schema provided
  *            when the DatumBuffer was initialized.  
  * 
+ * read(id, row) reads the record into an existing PrimitiveRow (with the 
+ *            same schema) instead of a new Datum[], and returns it.
+ * 
+ * view(id, view) points an existing RowView at the record, without reading
+ *            anything, and returns it.  find(target) compares the target to
+ *            records through a RowView, rather than reading each of them.
+ * 
  * Note that only read uses rowSchema.  If you are writing only, you may 
  * initialize DatumBuffer with a null rowSchema.
+ *
+ * The size of the page ([size] above) is the ByteBuffer's limit, so the same
+ * layout works for any page size.
+ *
+ * Rows are read and written through the schema's RowLayout.  For a 
+ * fixed-width (all INT/FLOAT) schema, that means straight-line reads and
+ * writes.  Callers that create many DatumBuffers over one schema can share 
+ * a RowLayout between them with new DatumBuffer(buffer, schema).layout(layout).
  **/
 package edu.buffalo.cse.sql.data;
 
 import java.nio.ByteBuffer;
 
 import edu.buffalo.cse.sql.Schema;
-import edu.buffalo.cse.sql.buffer.BufferManager;
 
 public class DatumBuffer {
   ByteBuffer buffer;
   Schema.Type[] schema;
+  RowLayout layout;
 
   public DatumBuffer(ByteBuffer buffer, Schema.Type[] schema)
   {
     this.buffer = buffer;
     this.schema = schema;
+    this.layout = null;
+  }
+
+  //Use [layout] (which must be the schema's) instead of working it out anew
+  public DatumBuffer layout(RowLayout layout)
+  { this.layout = layout; return this; }
+
+  protected RowLayout getLayout()
+  {
+    if(layout == null && schema != null){ layout = new RowLayout(schema); }
+    return layout;
   }
   
   protected int write(int position, Datum d)
@@ -83,11 +109,18 @@ public class DatumBuffer {
   public int write(Datum[] row)
     throws InsufficientSpaceException
   {
-    if(DatumSerialization.getLength(row) > remaining()-8) 
-      { throw new InsufficientSpaceException(); }
     int start = freeAddr();
 //    System.out.println("Starting row write @ byte "+start);
-    int i = DatumSerialization.write(buffer, start, row);
+    RowLayout layout = getLayout();
+    int i = -1;
+    if(layout != null && layout.isFixed() && 
+       layout.getFixedLength() <= remaining()-8)
+      { i = layout.write(buffer, start, row); }
+    if(i < 0){
+      if(DatumSerialization.getLength(row) > remaining()-8) 
+        { throw new InsufficientSpaceException(); }
+      i = DatumSerialization.write(buffer, start, row);
+    }
     
     int idx = length();
     
@@ -100,12 +133,29 @@ public class DatumBuffer {
   
   public Datum[] read(int idx)
   {
-    return DatumSerialization.read(buffer, addr(idx), schema);
+    return getLayout().read(buffer, addr(idx));
   }
-  
+
+  public PrimitiveRow read(int idx, PrimitiveRow row)
+  {
+    return getLayout().read(buffer, addr(idx), row);
+  }
+
+  public RowView view(int idx, RowView view)
+  {
+    return view.at(buffer, addr(idx));
+  }
+
+  //Checked against the page: every record takes a 4 byte pointer (and a
+  //page read optimistically may hold anything).
   public int length()
   {
-    return addr(-1);
+    int len = addr(-1);
+    if(len < 0 || len > buffer.limit() / 4){
+      throw new IndexOutOfBoundsException(
+        "Page of "+buffer.limit()+" bytes can't hold "+len+" records");
+    }
+    return len;
   }
   
   protected int binarySearch(int start, int length, Comparable<Datum[]> target)
@@ -128,13 +178,28 @@ public class DatumBuffer {
   public int find(Comparable<Datum[]> target)
     { return binarySearch(0, length(), target); }
 
-  public int find(final Datum[] target)
+  //As binarySearch(), comparing [target] to the records in place.
+  protected int binarySearch(int start, int length, Datum[] target, 
+                             RowView view)
   {
-    return find(new Comparable<Datum[]>() {
-        public int compareTo(Datum[] x) 
-          { return Datum.compareRows(target, x); }
-      });
+    if(length <= 0) { return start; }
+    int sep = length / 2;
+    int offset = view(start + sep, view).compareToFields(target, 0, view.size());
+    if(offset == 0){ return start+sep; }
+    if(offset < 0){ return binarySearch(start, length-sep-1, target, view); }
+    if(length == 1){
+      offset = view(start+1, view).compareToFields(target, 0, view.size());
+      if(offset >= 0){ return start+1; }
+      return start;
+    }
+    return binarySearch(start+sep+1, length-sep-1, target, view);
   }
+
+  public int find(Datum[] target, RowView view)
+    { return binarySearch(0, length(), target, view); }
+
+  public int find(Datum[] target)
+    { return find(target, new RowView(schema)); }
   
   protected int freeAddr()
   {
@@ -143,16 +208,16 @@ public class DatumBuffer {
   
   protected int addr(int i)
   {
-    return buffer.getInt(BufferManager.pageSize - (4 * (i+2)));
+    return buffer.getInt(buffer.limit() - (4 * (i+2)));
   }
   
   protected void setAddr(int i, int v)
   {
-    buffer.putInt(BufferManager.pageSize - (4 * (i+2)), v);
+    buffer.putInt(buffer.limit() - (4 * (i+2)), v);
   }
   
   public int remaining()
   {
-    return BufferManager.pageSize - freeAddr() - (length() + 1) * 4;
+    return buffer.limit() - freeAddr() - (length() + 1) * 4;
   }
 }
\ No newline at end of file
@@ -12,11 +12,23 @@
  * 
  * read() - Read the Datum/row with the specified schema from the ByteBuffer
  *          at the specified position.  Returns the Datum/row read.
+ *          (PrimitiveRow.read() reads a row without creating Datums)
+ * 
+ * readString() - Read just the String of a STRING Datum.
+ *
+ * compareString()/hashString() - Compare a stored STRING to a String, or 
+ *          hash it, as Datum.Str does, without reading it into a String.
+ *
+ * Strings are stored as their length in bytes followed by their UTF-8 
+ * encoding, which is moved in and out of the buffer in bulk.  Comparing and
+ * hashing work directly on the stored bytes if they are plain ASCII (where 
+ * one byte is one char), and decode the String otherwise.
  **/
 
 package edu.buffalo.cse.sql.data;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import edu.buffalo.cse.sql.Schema;
 import edu.buffalo.cse.sql.data.Datum;
@@ -28,7 +40,7 @@ public class DatumSerialization {
     switch(d.getType()){
       case INT: return 4;
       case FLOAT: return 4;
-      case STRING: return 4+(((Datum.Str)d).s.getBytes().length);
+      case STRING: return 4+utf8Length(((Datum.Str)d).s);
       case BOOL: return 1;
     }
     return 100000;
@@ -60,15 +72,12 @@ public class DatumSerialization {
         case BOOL: buffer.put(position, (byte)(((Datum.Bool)d).b ? 1 : 0)); 
                    return 1;
         case STRING: {
-          String s = ((Datum.Str)d).s;
-          byte[] sbytes = s.getBytes();
+          byte[] sbytes = ((Datum.Str)d).s.getBytes(StandardCharsets.UTF_8);
           buffer.putInt(position, sbytes.length);
-          int i = 4;
-          for(byte b : sbytes){
-            buffer.put(position + i, b);
-            i++;
-          }
-          return i; 
+          ByteBuffer out = buffer.duplicate();
+          out.position(position + 4);
+          out.put(sbytes);
+          return 4 + sbytes.length; 
         }
       }
       //this should never happen;
@@ -91,16 +100,80 @@ public class DatumSerialization {
       case INT: return new Datum.Int(buffer.getInt(position));
       case FLOAT: return new Datum.Flt(buffer.getFloat(position));
       case BOOL: return new Datum.Bool(buffer.get(position) > 0);
-      case STRING: {
-        byte[] sbytes = new byte[buffer.getInt(position)];
-        for(int i = 0; i < sbytes.length; i++){
-          sbytes[i] = buffer.get(position);
-        }
-        return new Datum.Str(new String(sbytes));
-      }
+      case STRING: return new Datum.Str(readString(buffer, position));
     }
     return null;
   }
+
+  public static String readString(ByteBuffer buffer, int position)
+  {
+    int len = stringLength(buffer, position);
+    if(buffer.hasArray()){
+      return new String(buffer.array(), buffer.arrayOffset() + position + 4, 
+                        len, StandardCharsets.UTF_8);
+    }
+    byte[] sbytes = new byte[len];
+    ByteBuffer in = buffer.duplicate();
+    in.position(position + 4);
+    in.get(sbytes);
+    return new String(sbytes, StandardCharsets.UTF_8);
+  }
+
+  //The byte length of the STRING at [position], checked against the buffer
+  //(a page read optimistically may hold anything).
+  protected static int stringLength(ByteBuffer buffer, int position)
+  {
+    int len = buffer.getInt(position);
+    if(len < 0 || len > buffer.limit() - position - 4){
+      throw new IndexOutOfBoundsException(
+        "String of "+len+" bytes at "+position+" overruns the buffer");
+    }
+    return len;
+  }
+
+  //The length of [s] in UTF-8, without encoding it if it's plain ASCII.
+  public static int utf8Length(String s)
+  {
+    for(int i = 0; i < s.length(); i++){
+      if(s.charAt(i) >= 0x80){ 
+        return s.getBytes(StandardCharsets.UTF_8).length; 
+      }
+    }
+    return s.length();
+  }
+
+  public static int compareString(ByteBuffer buffer, int position, String s)
+  {
+    int len = stringLength(buffer, position);
+    int start = position + 4;
+    int n = Math.min(len, s.length());
+    for(int i = 0; i < n; i++){
+      int b = buffer.get(start + i);
+      if(b < 0){ return Row.compareStrings(readString(buffer, position), s); }
+      char c = s.charAt(i);
+      if(b != c){ return b - c; }
+    }
+    if(len == s.length()){ return 0; }
+    //As Row.compareStrings(): the end of the shorter string is a quote
+    int next = (len > n) ? buffer.get(start + n) : s.charAt(n);
+    if(next < 0 || next == '\''){ 
+      return Row.compareStrings(readString(buffer, position), s); 
+    }
+    return (len > n) ? next - '\'' : '\'' - next;
+  }
+
+  public static int hashString(ByteBuffer buffer, int position)
+  {
+    int len = stringLength(buffer, position);
+    int start = position + 4;
+    int h = 0;
+    for(int i = 0; i < len; i++){
+      int b = buffer.get(start + i);
+      if(b < 0){ return readString(buffer, position).hashCode(); }
+      h = 31 * h + b;
+    }
+    return h;
+  }
   
   public static Datum[] read(ByteBuffer buffer, int position, Schema.Type[] t)
   {
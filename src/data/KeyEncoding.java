@@ -0,0 +1,163 @@
+/**
+ * An order-preserving binary encoding of keys: two keys compare (with
+ * compare(), an unsigned byte-by-byte comparison) in the same order as
+ * Datum.compareRows() puts them in.  Keys that are compared many times
+ * (e.g., the separator keys of ISAM index pages) can be encoded once, and
+ * then compared without any type switches or Datum calls.
+ *
+ * Each field is encoded in turn:
+ *   INT:    Big-endian, with the sign bit flipped.
+ *   FLOAT:  Big-endian IEEE bits, with the sign bit flipped for positive
+ *           values and every bit flipped for negative ones.  -0.0 is
+ *           encoded as 0.0, as the two are equal Datums.  NaNs sort after
+ *           everything else (Datum.compareTo() has no consistent order for
+ *           them).
+ *   BOOL:   One byte: 0 for true, 1 for false (true sorts first).
+ *   STRING: Datum.Str compares strings quoted, so the string's chars and a
+ *           closing quote are encoded, one at a time: chars below 0x7f as
+ *           one byte (the char plus 1), others as three bytes (0x80 plus
+ *           the top 2 bits, then 7 bits, then 7 bits).  A 0 byte ends the
+ *           string, and sorts before any char.
+ *
+ * encode(types, key): Encode a key of the given types, or return null if a
+ *                     field's Datum isn't of its type (Datum.compareTo()
+ *                     orders mixed types differently).
+ * encode(row, cols):  Encode fields [cols] of a Row.  Given an [out] array
+ *                     of at least length(row, cols) bytes, encodes them into
+ *                     it instead, and returns the number of bytes used, so 
+ *                     that a search can encode one stored key after another
+ *                     into the same array.
+ * compare(a, b):      Compare two encoded keys.  As with compareRows(), a
+ *                     key that is a prefix of the other (fewer fields)
+ *                     compares equal to it.
+ * compare(a, b, n):   As compare(a, b), with only the first [n] bytes of [b]
+ *                     making up its key.
+ **/
+package edu.buffalo.cse.sql.data;
+
+import edu.buffalo.cse.sql.Schema;
+
+public class KeyEncoding {
+
+  public static byte[] encode(Schema.Type[] types, Datum[] key)
+  {
+    if(key.length > types.length){ return null; }
+    int len = 0;
+    for(int i = 0; i < key.length; i++){
+      if(key[i].getType() != types[i]){ return null; }
+      len += (types[i] == Schema.Type.STRING) ?
+        stringLength(((Datum.Str)key[i]).s) : fixedLength(types[i]);
+    }
+    byte[] out = new byte[len];
+    int pos = 0;
+    for(int i = 0; i < key.length; i++){
+      Datum d = key[i];
+      switch(types[i]){
+        case INT: pos = putInt(out, pos, ((Datum.Int)d).i); break;
+        case FLOAT: pos = putFloat(out, pos, ((Datum.Flt)d).f); break;
+        case BOOL: out[pos++] = (byte)(((Datum.Bool)d).b ? 0 : 1); break;
+        case STRING: pos = putString(out, pos, ((Datum.Str)d).s); break;
+      }
+    }
+    return out;
+  }
+
+  public static byte[] encode(Row row, int[] cols)
+  {
+    byte[] out = new byte[length(row, cols)];
+    encode(row, cols, out);
+    return out;
+  }
+
+  public static int length(Row row, int[] cols)
+  {
+    int len = 0;
+    for(int col : cols){
+      len += (row.getType(col) == Schema.Type.STRING) ?
+        stringLength(row.getString(col)) : fixedLength(row.getType(col));
+    }
+    return len;
+  }
+
+  public static int encode(Row row, int[] cols, byte[] out)
+  {
+    int pos = 0;
+    for(int col : cols){
+      switch(row.getType(col)){
+        case INT: pos = putInt(out, pos, row.getInt(col)); break;
+        case FLOAT: pos = putFloat(out, pos, row.getFloat(col)); break;
+        case BOOL: out[pos++] = (byte)(row.getBool(col) ? 0 : 1); break;
+        case STRING: pos = putString(out, pos, row.getString(col)); break;
+      }
+    }
+    return pos;
+  }
+
+  public static int compare(byte[] a, byte[] b)
+  {
+    return compare(a, b, b.length);
+  }
+
+  public static int compare(byte[] a, byte[] b, int bLength)
+  {
+    int n = Math.min(a.length, bLength);
+    for(int i = 0; i < n; i++){
+      int x = a[i] & 0xff, y = b[i] & 0xff;
+      if(x != y){ return x - y; }
+    }
+    return 0;
+  }
+
+  static int fixedLength(Schema.Type t)
+  {
+    return (t == Schema.Type.BOOL) ? 1 : 4;
+  }
+
+  static int stringLength(String s)
+  {
+    //the closing quote and the terminator take a byte each
+    int len = 2;
+    for(int i = 0; i < s.length(); i++){
+      len += (s.charAt(i) < 0x7f) ? 1 : 3;
+    }
+    return len;
+  }
+
+  static int putInt(byte[] out, int pos, int v)
+  {
+    v ^= 0x80000000;
+    out[pos] = (byte)(v >>> 24);
+    out[pos+1] = (byte)(v >>> 16);
+    out[pos+2] = (byte)(v >>> 8);
+    out[pos+3] = (byte)v;
+    return pos + 4;
+  }
+
+  static int putFloat(byte[] out, int pos, float f)
+  {
+    if(f == 0.0f){ f = 0.0f; }
+    int bits = Float.floatToIntBits(f);
+    //putInt() flips the sign bit back for negative values
+    return putInt(out, pos, (bits < 0) ? ~bits ^ 0x80000000 : bits);
+  }
+
+  static int putChar(byte[] out, int pos, char c)
+  {
+    if(c < 0x7f){
+      out[pos] = (byte)(c + 1);
+      return pos + 1;
+    }
+    out[pos] = (byte)(0x80 | (c >> 14));
+    out[pos+1] = (byte)((c >> 7) & 0x7f);
+    out[pos+2] = (byte)(c & 0x7f);
+    return pos + 3;
+  }
+
+  static int putString(byte[] out, int pos, String s)
+  {
+    for(int i = 0; i < s.length(); i++){ pos = putChar(out, pos, s.charAt(i)); }
+    pos = putChar(out, pos, '\'');
+    out[pos] = 0;
+    return pos + 1;
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * A row held in primitive slots instead of as a Datum[].
+ *
+ * A PrimitiveRow has a fixed schema.  INT, FLOAT and BOOL fields live in an
+ * int[] (FLOATs as their raw bits, BOOLs as 0 or 1), STRING fields in a
+ * String[].  Reading a row from a page into an existing PrimitiveRow (see
+ * read() and DatumBuffer.read(idx, row)) allocates nothing but the Strings,
+ * so a scan can reuse one PrimitiveRow for every row it visits.
+ *
+ * getInt/getFloat/getBool/getString(i): The value of field [i].
+ * set(row):        Copy a Datum[] into the row.  Row.toDatums() goes the other
+ *                  way.  These are the adapters for APIs that deal in Datum[].
+ * 
+ * Comparison and hashing are inherited from Row.
+ **/
+package edu.buffalo.cse.sql.data;
+
+import java.nio.ByteBuffer;
+
+import edu.buffalo.cse.sql.Schema;
+
+public class PrimitiveRow extends Row {
+  final Schema.Type[] schema;
+  final int[] slots;
+  final String[] strings;
+
+  public PrimitiveRow(Schema.Type[] schema)
+  {
+    this.schema = schema;
+    this.slots = new int[schema.length];
+    String[] strings = null;
+    for(Schema.Type t : schema){
+      if(t == Schema.Type.STRING){ strings = new String[schema.length]; }
+    }
+    this.strings = strings;
+  }
+
+  public static PrimitiveRow of(Schema.Type[] schema, Datum[] row)
+    throws Datum.CastError
+  {
+    return new PrimitiveRow(schema).set(row);
+  }
+
+  public Schema.Type[] getSchema() { return schema; }
+  public int size() { return schema.length; }
+  public Schema.Type getType(int i) { return schema[i]; }
+
+  public int getInt(int i) { return slots[i]; }
+  public float getFloat(int i) { return Float.intBitsToFloat(slots[i]); }
+  public boolean getBool(int i) { return slots[i] != 0; }
+  public String getString(int i) { return strings[i]; }
+
+  public void setInt(int i, int v) { slots[i] = v; }
+  public void setFloat(int i, float v) { slots[i] = Float.floatToRawIntBits(v); }
+  public void setBool(int i, boolean v) { slots[i] = v ? 1 : 0; }
+  public void setString(int i, String v) { strings[i] = v; }
+
+  public PrimitiveRow set(Datum[] row)
+    throws Datum.CastError
+  {
+    for(int i = 0; i < schema.length; i++){
+      switch(schema[i]){
+        case INT: slots[i] = row[i].toInt(); break;
+        case FLOAT: setFloat(i, row[i].toFloat()); break;
+        case BOOL: setBool(i, row[i].toBool()); break;
+        case STRING: strings[i] = ((Datum.Str)row[i]).s; break;
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Read the row stored at [position] in [buffer] (as laid out by
+   * DatumSerialization.write()) into this object.  Returns the number of
+   * bytes read.
+   **/
+  public int read(ByteBuffer buffer, int position)
+  {
+    int offset = 0;
+    for(int i = 0; i < schema.length; i++){
+      int at = position + offset;
+      switch(schema[i]){
+        case INT:
+        case FLOAT: slots[i] = buffer.getInt(at); break;
+        case BOOL: slots[i] = (buffer.get(at) > 0) ? 1 : 0; break;
+        case STRING: strings[i] = DatumSerialization.readString(buffer, at); break;
+      }
+      offset += DatumSerialization.readLen(buffer, at, schema[i]);
+    }
+    return offset;
+  }
+}
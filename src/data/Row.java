@@ -0,0 +1,141 @@
+/**
+ * A row whose fields can be read one at a time, without creating a Datum for
+ * each of them.  PrimitiveRow holds its fields itself; RowView decodes them
+ * from a page on demand.
+ *
+ * Subclasses provide the schema and the typed getters; everything else is
+ * defined in terms of those:
+ *
+ * get(i):            Field [i] as a Datum.
+ * toDatums():        The whole row as a (new) Datum[].
+ * compareField():    Compare field [i] to a Datum, or to a field of another
+ *                    Row, in the same order as Datum.compareTo().
+ * compareRow(r):     Compare the row to a Datum[], as Datum.compareRows().
+ * compareToFields(): Compare a Datum[] to fields [from] to [to] of the row, as
+ *                    Datum.compareRows(key, fields).
+ * hashField(i):      The same hash as get(i).hashCode().
+ **/
+package edu.buffalo.cse.sql.data;
+
+import edu.buffalo.cse.sql.Schema;
+
+public abstract class Row {
+  public abstract int size();
+  public abstract Schema.Type getType(int i);
+  public abstract int getInt(int i);
+  public abstract float getFloat(int i);
+  public abstract boolean getBool(int i);
+  public abstract String getString(int i);
+
+  public Datum get(int i)
+  {
+    switch(getType(i)){
+      case INT: return new Datum.Int(getInt(i));
+      case FLOAT: return new Datum.Flt(getFloat(i));
+      case BOOL: return getBool(i) ? Datum.Bool.TRUE : Datum.Bool.FALSE;
+      case STRING: return new Datum.Str(getString(i));
+    }
+    return null;
+  }
+
+  public Datum[] toDatums()
+  {
+    Datum[] row = new Datum[size()];
+    for(int i = 0; i < row.length; i++){ row[i] = get(i); }
+    return row;
+  }
+
+  public int compareField(int i, Datum d)
+  {
+    if(d.getType() != getType(i)){ return get(i).compareTo(d); }
+    try {
+      switch(getType(i)){
+        case INT: return compareInts(getInt(i), d.toInt());
+        case FLOAT: return compareFloats(getFloat(i), d.toFloat());
+        case BOOL: return compareBools(getBool(i), d.toBool());
+        case STRING: return compareStrings(getString(i), ((Datum.Str)d).s);
+      }
+    } catch(Datum.CastError e) {}
+    return 0;
+  }
+
+  public int compareField(int i, Row other, int j)
+  {
+    if(other.getType(j) != getType(i)){ return get(i).compareTo(other.get(j)); }
+    switch(getType(i)){
+      case INT: return compareInts(getInt(i), other.getInt(j));
+      case FLOAT: return compareFloats(getFloat(i), other.getFloat(j));
+      case BOOL: return compareBools(getBool(i), other.getBool(j));
+      case STRING: return compareStrings(getString(i), other.getString(j));
+    }
+    return 0;
+  }
+
+  public int compareRow(Datum[] other)
+  {
+    for(int i = 0; i < size(); i++){
+      if(i >= other.length){ return 0; }
+      int cmp = compareField(i, other[i]);
+      if(cmp != 0){ return cmp; }
+    }
+    return 0;
+  }
+
+  public int compareToFields(Datum[] key, int from, int to)
+  {
+    for(int i = 0; i < key.length; i++){
+      if(from + i >= to){ return 0; }
+      int cmp = (key[i].getType() == getType(from + i)) ?
+        -compareField(from + i, key[i]) : key[i].compareTo(get(from + i));
+      if(cmp != 0){ return cmp; }
+    }
+    return 0;
+  }
+
+  public int hashField(int i)
+  {
+    switch(getType(i)){
+      case INT: return getInt(i);
+      case FLOAT: return (int)getFloat(i);
+      case BOOL: return getBool(i) ? 1 : 0;
+      case STRING: return getString(i).hashCode();
+    }
+    return 0;
+  }
+
+  public String toString()
+  {
+    return Datum.stringOfRow(toDatums());
+  }
+
+  static int compareInts(int a, int b)
+  {
+    return (a == b) ? 0 : ((a > b) ? 1 : -1);
+  }
+
+  static int compareFloats(float a, float b)
+  {
+    return (a == b) ? 0 : ((a > b) ? 1 : -1);
+  }
+
+  //As Datum.Bool: true sorts before false.
+  static int compareBools(boolean a, boolean b)
+  {
+    return (a == b) ? 0 : (a ? -1 : 1);
+  }
+
+  //As Datum.Str, which compares the quoted strings: the end of the shorter
+  //string compares as a quote.
+  static int compareStrings(String a, String b)
+  {
+    int n = Math.min(a.length(), b.length());
+    for(int i = 0; i < n; i++){
+      char ca = a.charAt(i), cb = b.charAt(i);
+      if(ca != cb){ return ca - cb; }
+    }
+    if(a.length() == b.length()){ return 0; }
+    char next = (a.length() < b.length()) ? b.charAt(n) : a.charAt(n);
+    if(next == '\''){ return ("'"+a+"'").compareTo("'"+b+"'"); }
+    return (a.length() < b.length()) ? '\'' - next : next - '\'';
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * The byte layout of rows of a given schema, as DatumSerialization lays them
+ * out, worked out once so that reading and writing rows doesn't have to
+ * switch on every field's type.
+ *
+ * INT and FLOAT fields take 4 bytes each.  A schema made up of only INTs and
+ * FLOATs (as every TestDataStream table is) is fixed-width: every field is
+ * at a fixed offset, and every row is getFixedLength() bytes long, so rows
+ * are read and written with straight runs of absolute getInt()/putInt()
+ * calls.  Otherwise, only the fields up to and including the first STRING
+ * or BOOL are at fixed offsets (see knownOffsets()), and rows are read and
+ * written by DatumSerialization one field at a time.
+ *
+ * read(b, p):     Read the row at [p] in [b] as a Datum[].
+ * read(b, p, r):  Read the row at [p] in [b] into PrimitiveRow [r].
+ * write(b, p, r): Write Datum[] [r] at [p] in [b].  For a fixed-width schema,
+ *                 returns -1 (having written nothing useful) if [r] isn't
+ *                 made up of Datum.Ints and Datum.Flts matching the schema.
+ **/
+package edu.buffalo.cse.sql.data;
+
+import java.nio.ByteBuffer;
+
+import edu.buffalo.cse.sql.Schema;
+
+public class RowLayout {
+  final Schema.Type[] schema;
+  //Offset of each field from the start of the row; offsets[0] through
+  //offsets[known-1] are the same for every row.
+  final int[] offsets;
+  final int known;
+  //Length of every row, or -1 if rows vary in length.
+  final int fixedLength;
+
+  public RowLayout(Schema.Type[] schema)
+  {
+    this.schema = schema;
+    this.offsets = new int[schema.length];
+    int i = 0;
+    int offset = 0;
+    while(i < schema.length){
+      offsets[i] = offset;
+      i++;
+      if(schema[i-1] != Schema.Type.INT && schema[i-1] != Schema.Type.FLOAT){
+        break;
+      }
+      offset += 4;
+    }
+    boolean fixed = (i == schema.length) &&
+      (i == 0 || schema[i-1] == Schema.Type.INT ||
+                 schema[i-1] == Schema.Type.FLOAT);
+    this.known = i;
+    this.fixedLength = fixed ? offset : -1;
+  }
+
+  public Schema.Type[] getSchema() { return schema; }
+  public boolean isFixed() { return fixedLength >= 0; }
+  public int getFixedLength() { return fixedLength; }
+  public int knownOffsets() { return known; }
+  public int offset(int i) { return offsets[i]; }
+
+  public Datum[] read(ByteBuffer buffer, int position)
+  {
+    if(fixedLength < 0){
+      return DatumSerialization.read(buffer, position, schema);
+    }
+    Datum[] row = new Datum[schema.length];
+    for(int i = 0; i < row.length; i++){
+      int at = position + (i << 2);
+      row[i] = (schema[i] == Schema.Type.INT) ?
+        new Datum.Int(buffer.getInt(at)) : new Datum.Flt(buffer.getFloat(at));
+    }
+    return row;
+  }
+
+  public PrimitiveRow read(ByteBuffer buffer, int position, PrimitiveRow row)
+  {
+    if(fixedLength < 0){
+      row.read(buffer, position);
+    } else {
+      int[] slots = row.slots;
+      for(int i = 0; i < slots.length; i++){
+        slots[i] = buffer.getInt(position + (i << 2));
+      }
+    }
+    return row;
+  }
+
+  public int write(ByteBuffer buffer, int position, Datum[] row)
+  {
+    if(fixedLength < 0){
+      return DatumSerialization.write(buffer, position, row);
+    }
+    if(row.length != schema.length){ return -1; }
+    for(int i = 0; i < row.length; i++){
+      int at = position + (i << 2);
+      Datum d = row[i];
+      if(d instanceof Datum.Int && schema[i] == Schema.Type.INT){
+        buffer.putInt(at, ((Datum.Int)d).i);
+      } else if(d instanceof Datum.Flt && schema[i] == Schema.Type.FLOAT){
+        buffer.putFloat(at, ((Datum.Flt)d).f);
+      } else {
+        return -1;
+      }
+    }
+    return fixedLength;
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * A cursor over a row stored in a page, that decodes fields only when they
+ * are asked for.
+ *
+ * at(buffer, position) points the view at the row stored at [position] in
+ * [buffer] (as laid out by DatumSerialization.write()); DatumBuffer.view()
+ * does the same for a record ID.  Nothing is read until a getter is called,
+ * and then only the field asked for (and, past the fixed offsets of the
+ * schema's RowLayout, the lengths of the fields before it).  The same view
+ * can be pointed at one row after another, so a search through a page can
+ * compare keys against the page bytes and build a Datum[] (with toDatums())
+ * only for the row it wants.
+ *
+ * A view reads the buffer directly: it's only valid while the page it points
+ * into is (pinned or optimistically read and) unchanged.
+ *
+ * Comparison and hashing are inherited from Row, except that STRING fields
+ * are compared and hashed on their stored bytes (see DatumSerialization).
+ **/
+package edu.buffalo.cse.sql.data;
+
+import java.nio.ByteBuffer;
+
+import edu.buffalo.cse.sql.Schema;
+
+public class RowView extends Row {
+  final Schema.Type[] schema;
+  final RowLayout layout;
+  //Offset of each field from the start of the row; offsets[0] through
+  //offsets[known-1] are valid.  The layout's fixed offsets always are.
+  final int[] offsets;
+  int known;
+  ByteBuffer buffer;
+  int position;
+
+  public RowView(Schema.Type[] schema)
+  {
+    this(new RowLayout(schema));
+  }
+
+  public RowView(RowLayout layout)
+  {
+    this.schema = layout.getSchema();
+    this.layout = layout;
+    this.offsets = new int[schema.length];
+    for(int i = 0; i < layout.knownOffsets(); i++){
+      offsets[i] = layout.offset(i);
+    }
+  }
+
+  public RowView at(ByteBuffer buffer, int position)
+  {
+    this.buffer = buffer;
+    this.position = position;
+    this.known = layout.knownOffsets();
+    return this;
+  }
+
+  public Schema.Type[] getSchema() { return schema; }
+  public int size() { return schema.length; }
+  public Schema.Type getType(int i) { return schema[i]; }
+
+  //Position of field [i] in the buffer
+  protected int fieldAt(int i)
+  {
+    while(known <= i){
+      int prev = position + offsets[known-1];
+      offsets[known] = offsets[known-1] +
+        DatumSerialization.readLen(buffer, prev, schema[known-1]);
+      known++;
+    }
+    return position + offsets[i];
+  }
+
+  public int getInt(int i) { return buffer.getInt(fieldAt(i)); }
+  public float getFloat(int i) { return buffer.getFloat(fieldAt(i)); }
+  public boolean getBool(int i) { return buffer.get(fieldAt(i)) > 0; }
+  public String getString(int i)
+    { return DatumSerialization.readString(buffer, fieldAt(i)); }
+
+  //STRINGs are compared and hashed in place, rather than through getString()
+  public int compareField(int i, Datum d)
+  {
+    if(schema[i] == Schema.Type.STRING && d instanceof Datum.Str){
+      return DatumSerialization.compareString(buffer, fieldAt(i), 
+                                              ((Datum.Str)d).s);
+    }
+    return super.compareField(i, d);
+  }
+
+  public int hashField(int i)
+  {
+    if(schema[i] == Schema.Type.STRING){
+      return DatumSerialization.hashString(buffer, fieldAt(i));
+    }
+    return super.hashField(i);
+  }
+}
@@ -8,8 +8,9 @@ import edu.buffalo.cse.sql.SqlException;
 import edu.buffalo.cse.sql.Schema;
 import edu.buffalo.cse.sql.data.Datum;
 import edu.buffalo.cse.sql.data.DatumBuffer;
+import edu.buffalo.cse.sql.data.PrimitiveRow;
+import edu.buffalo.cse.sql.data.RowLayout;
 import edu.buffalo.cse.sql.buffer.BufferException;
-import edu.buffalo.cse.sql.buffer.BufferManager;
 import edu.buffalo.cse.sql.buffer.ManagedFile;
 
 public class DatumStreamIterator implements IndexIterator {
@@ -19,21 +20,39 @@ public class DatumStreamIterator implements IndexIterator {
 	int maxPage;
 	Datum[] maxRecord;
 	DatumBuffer currBuffer;
-	Datum[] rowBuffer;
+	//The next row is read into rowBuffer; buffered is true if it holds a row
+	//that next() hasn't returned yet.  nextRow() hands out rowBuffer and
+	//swaps in spareRow, so that looking ahead (hasNext()) doesn't overwrite
+	//the row the caller is holding.
+	PrimitiveRow rowBuffer;
+	PrimitiveRow spareRow;
+	boolean buffered;
 	IndexKeySpec key;
 	Schema.Type[] schema;
+	RowLayout layout;
+	//Read-ahead: pages up to (but excluding) prefetchedTo have been requested
+	//from the file.  The window starts out empty, and doubles (up to the 
+	//file's read-ahead limit) every time the scan catches up with it.
+	int window;
+	int prefetchedTo;
+	static final int MIN_READ_AHEAD = 4;
 
 	public DatumStreamIterator(ManagedFile file, Schema.Type[] schema)
 	{
 		this.file = file;
 		this.schema = schema;
+		this.layout = new RowLayout(schema);
 		this.key = null;
 		currPage = 0;
-		maxPage = (int)(file.size() / BufferManager.pageSize);
+		maxPage = file.size() - 1;
 		currRecord = 0;
 		maxRecord = null;
 		currBuffer = null;
-		rowBuffer = null;
+		rowBuffer = new PrimitiveRow(schema);
+		spareRow = new PrimitiveRow(schema);
+		buffered = false;
+		window = 0;
+		prefetchedTo = 0;
 	}
 
 	public DatumStreamIterator currPage(int currPage)
@@ -67,28 +86,48 @@ public class DatumStreamIterator implements IndexIterator {
 			currRecord = 0;
 		}
 		if(currPage > maxPage) return false;
-		file.pin(currPage);
-		currBuffer = new DatumBuffer(file.getBuffer(currPage), schema);
-		System.out.println("Loading page "+currPage+"/"+maxPage+" with "+currBuffer.length()+" records");
+		//The first page may be all a lookup needs; once the scan moves on to
+		//a second page, it's sequential, and worth reading ahead.
+		if(currBuffer != null){ readAhead(); }
+		currBuffer = new DatumBuffer(file.pin(currPage), schema).layout(layout);
+		//System.out.println("Loading page "+currPage+"/"+maxPage+" with "+currBuffer.length()+" records");
 		return true;
 	}
 
+	protected void readAhead()
+	{
+		int limit = file.getReadAhead();
+		if(limit <= 0) return;
+		//Keep at least half a window of pages in flight ahead of the scan.
+		if(currPage + window / 2 < prefetchedTo) return;
+		window = Math.min(limit, Math.max(MIN_READ_AHEAD, window * 2));
+		int from = Math.max(currPage + 1, prefetchedTo);
+		int to = Math.min(maxPage + 1, currPage + 1 + window);
+		if(from < to){
+			file.prefetch(from, to - from);
+			prefetchedTo = to;
+		}
+	}
+
 	public boolean buffer()
 	{
 		try {
-			if(rowBuffer == null){ 
+			if(!buffered){ 
+				//past the last page (which has been unpinned) already
+				if(currPage > maxPage) { return false; }
 				while(currRecord >= currBuffer.length())
 				{ if(!advancePage()) { return false; } }
-				rowBuffer = currBuffer.read(currRecord);
+				currBuffer.read(currRecord, rowBuffer);
+				buffered = true;
 				currRecord++;	
 				//System.out.println("CurrRecord:"+currRecord);
 			}
 			if(maxRecord != null){
 				if(key != null){
-					System.out.println(Datum.stringOfRow(key.createKey(rowBuffer))+ "<==>"+ Datum.stringOfRow(maxRecord));
-					return (key.compare(key.createKey(rowBuffer), maxRecord) < 0);
+					//System.out.println(rowBuffer+ "<==>"+ Datum.stringOfRow(maxRecord));
+					return (key.compareKey(rowBuffer, maxRecord) < 0);
 				} else {
-					return Datum.compareRows(rowBuffer, maxRecord) <= 0;
+					return rowBuffer.compareRow(maxRecord) <= 0;
 				}
 			} else { return true; }
 		} catch(Exception e) {
@@ -105,12 +144,18 @@ public class DatumStreamIterator implements IndexIterator {
 
 	public Datum[] next()
 	{
-		Datum[] ret = null;
-		if(buffer()){ 
-			ret = rowBuffer;
-			rowBuffer = null;
-		}
-		return ret;
+		PrimitiveRow row = nextRow();
+		return (row == null) ? null : row.toDatums();
+	}
+
+	public PrimitiveRow nextRow()
+	{
+		if(!buffer()){ return null; }
+		buffered = false;
+		PrimitiveRow row = rowBuffer;
+		rowBuffer = spareRow;
+		spareRow = row;
+		return row;
 	}
 
 	public void close()
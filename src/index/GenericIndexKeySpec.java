@@ -4,17 +4,21 @@ package edu.buffalo.cse.sql.index;
 import java.util.Comparator;
 
 import edu.buffalo.cse.sql.data.Datum;
+import edu.buffalo.cse.sql.data.KeyEncoding;
+import edu.buffalo.cse.sql.data.Row;
 import edu.buffalo.cse.sql.Schema;
 
 public class GenericIndexKeySpec implements IndexKeySpec {
 
   Schema.Type[] dataSchema;
   int[] keyCols;
+  Schema.Type[] keyTypes;
 
   public GenericIndexKeySpec(Schema.Type[] dataSchema, int[] keyCols)
   {
     this.dataSchema = dataSchema;
     this.keyCols = keyCols;
+    this.keyTypes = keySchema();
   }
   public GenericIndexKeySpec(Schema.Type[] dataSchema, int leadingKeys)
   {
@@ -45,9 +49,28 @@ public class GenericIndexKeySpec implements IndexKeySpec {
   {
     return Datum.hashOfRow(createKey(row));
   }
+  public int hashRow(Row row)
+  {
+    int ret = 0;
+    for(int col : keyCols){ ret = ret^row.hashField(col); }
+    return ret;
+  }
   public int compare(Datum[] a, Datum[] b){
     return Datum.compareRows(a, b);
   }
+  public int compareKey(Row row, Datum[] key)
+  {
+    for(int i = 0; i < keyCols.length; i++){
+      if(i >= key.length) { return 0; }
+      int cmp = row.compareField(keyCols[i], key[i]);
+      if(cmp != 0){ return cmp; }
+    }
+    return 0;
+  }
+  public byte[] encodeKey(Datum[] key)
+  {
+    return KeyEncoding.encode(keyTypes, key);
+  }
   public Schema.Type[] rowSchema()
     { return dataSchema; }
   public Schema.Type[] keySchema()
@@ -15,11 +15,14 @@ import edu.buffalo.cse.sql.Schema;
 import edu.buffalo.cse.sql.SqlException;
 import edu.buffalo.cse.sql.data.Datum;
 import edu.buffalo.cse.sql.data.DatumBuffer;
+import edu.buffalo.cse.sql.data.RowLayout;
+import edu.buffalo.cse.sql.data.RowView;
 import edu.buffalo.cse.sql.data.DatumSerialization;
 import edu.buffalo.cse.sql.data.InsufficientSpaceException;
 import edu.buffalo.cse.sql.buffer.BufferManager;
 import edu.buffalo.cse.sql.buffer.BufferException;
 import edu.buffalo.cse.sql.buffer.ManagedFile;
+import edu.buffalo.cse.sql.buffer.PageReader;
 import edu.buffalo.cse.sql.buffer.FileManager;
 import edu.buffalo.cse.sql.test.TestDataStream;
 
@@ -42,14 +45,16 @@ public class HashIndex implements IndexFile {
 	throws SqlException, IOException {
 
 		ManagedFile mf = fm.open(path); 
+		mf.setSyncOnEvict(false);//durable once fm.close() flushes
 		mf.ensureSize(directorySize); 
 		int indexofbucket = -1;
 		//System.out.println("Path= "+ path.getAbsolutePath());
 		DatumBuffer d = null;
+		RowLayout layout = new RowLayout(key.rowSchema());
 		for (int i = 0; i < mf.size(); i++) 
 		{
 			ByteBuffer b = mf.safePin(i);
-			d = new DatumBuffer(b, key.rowSchema());
+			d = new DatumBuffer(b, key.rowSchema()).layout(layout);
 			d.initialize(8);
 			Datum[] put = new Datum[2];
 			put[0] = new Datum.Int(-1);
@@ -66,7 +71,7 @@ public class HashIndex implements IndexFile {
 			Datum[] tuple = dataSource.next(); 
 			indexofbucket = key.hashRow(tuple) % directorySize; 
 			ByteBuffer b = mf.safePin(indexofbucket);
-			d = new DatumBuffer(b, key.rowSchema());
+			d = new DatumBuffer(b, key.rowSchema()).layout(layout);
 
 			try {
 
@@ -80,13 +85,13 @@ public class HashIndex implements IndexFile {
 						Schema.Type.INT)).toInt();
 				mf.unpin(indexofbucket, true);
 				if (overflowind == -1) {
-					mf.pin(indexofbucket);
+					int overflowPage = mf.allocatePage();
+					b = mf.pin(indexofbucket);
 
-					DatumSerialization.write(b, 0, new Datum.Int(mf.size()));
+					DatumSerialization.write(b, 0, new Datum.Int(overflowPage));
 					mf.unpin(indexofbucket, true);
-					mf.ensureSize(mf.size() + 1); 
-					b = mf.safePin(mf.size() - 1);
-					d = new DatumBuffer(b, key.rowSchema());
+					b = mf.pin(overflowPage);
+					d = new DatumBuffer(b, key.rowSchema()).layout(layout);
 					d.initialize(8); 
 					Datum[] put = new Datum[2];
 					put[0] = new Datum.Int(-1);
@@ -94,7 +99,7 @@ public class HashIndex implements IndexFile {
 					DatumSerialization.write(b,0,put[0]);
 					DatumSerialization.write(b,0,put[1]);
 					d.write(tuple);
-					mf.unpin(mf.size() - 1, true);
+					mf.unpin(overflowPage, true);
 
 				}
 
@@ -105,10 +110,9 @@ public class HashIndex implements IndexFile {
 
 					while (overflowind != -1 ) {
 
-						b = mf.getBuffer(overflowind);
-						mf.pin(overflowind);
+						b = mf.pin(overflowind);
 						temp = overflowind;
-						d = new DatumBuffer(b, key.rowSchema());
+						d = new DatumBuffer(b, key.rowSchema()).layout(layout);
 						if ((d.remaining() -8) - (DatumSerialization.getLength(tuple)) > 0) 
 
 						{
@@ -129,9 +133,9 @@ public class HashIndex implements IndexFile {
 						else 
 						{
 							oldval = overflowind;
-							mf.unpin(temp, true);
 							overflowind = (DatumSerialization.read(b, 0,
 									Schema.Type.INT)).toInt();
+							mf.unpin(temp, true);
 							if(overflowind == -1)
 							{
 
@@ -150,12 +154,12 @@ public class HashIndex implements IndexFile {
 
 					}
 					if (overflowind == -1 && writeflag == 0) {
+						int overflowPage = mf.allocatePage();
+						DatumSerialization.write(b, 0, new Datum.Int(overflowPage));
 						mf.unpin(temp, true);
-						DatumSerialization.write(b, 0, new Datum.Int(mf.size()));
-						mf.ensureSize(mf.size() + 1); 
 
-						b = mf.safePin(mf.size() - 1);
-						d = new DatumBuffer(b, key.rowSchema());
+						b = mf.pin(overflowPage);
+						d = new DatumBuffer(b, key.rowSchema()).layout(layout);
 						d.initialize(8); 
 						Datum[] put = new Datum[2];
 						put[0] = new Datum.Int(-1);
@@ -164,7 +168,7 @@ public class HashIndex implements IndexFile {
 						DatumSerialization.write(b, 4, put[1]);
 
 						d.write(tuple);
-						mf.unpin(mf.size() - 1, true);
+						mf.unpin(overflowPage, true);
 					}
 
 				}
@@ -194,59 +198,59 @@ public class HashIndex implements IndexFile {
 		throw new SqlException("Unimplemented");
 	}
 
-	public Datum[] get(Datum[] key) throws SqlException, IOException {
-
-		ByteBuffer b = mangfile.getBuffer(0);
-		int directorysize = DatumSerialization.read(b, 4, inkeyspec.rowSchema())[0].toInt();
+	public Datum[] get(final Datum[] key) throws SqlException, IOException {
+
+		//Each page is read optimistically (see ManagedFile.readOptimistic())
+		//while probe searches it.  probe leaves the page's overflow pointer in
+		//next[0].
+		//Rows are searched and compared in place, through a RowView; only the
+		//matching row (if any) is read out.
+		final int[] next = new int[1];
+		final RowLayout layout = new RowLayout(inkeyspec.rowSchema());
+		final RowView view = new RowView(layout);
+		PageReader<Datum[], SqlException> probe = new PageReader<Datum[], SqlException>() {
+			public Datum[] read(ByteBuffer b) throws SqlException
+			{
+				next[0] = view.at(b, 0).getInt(0);
+				DatumBuffer d = new DatumBuffer(b, inkeyspec.rowSchema()).layout(layout);
+				d.view(d.find(key, view), view);
+				if (inkeyspec.compareKey(view, key) == 0) // frontend buckets with the key, if key matches
+					return view.toDatums();
+				return null;
+			}
+		};
+		int directorysize = mangfile.readOptimistic(0, new PageReader<Integer, SqlException>() {
+			public Integer read(ByteBuffer b) throws SqlException
+			{
+				return view.at(b, 4).getInt(0);
+			}
+		});
 		int rownumber = inkeyspec.hashKey(key) % directorysize;// page number
-		b = mangfile.getBuffer(rownumber);
-		int oldval = 0;
-		DatumBuffer d = new DatumBuffer(b, inkeyspec.rowSchema());
-		int position = d.find(key);
-		Datum[] tuple = d.read(position);
-		Datum[] somekey = inkeyspec.createKey(tuple);
-		if (inkeyspec.compare(somekey, key) == 0) // frontend buckets with the key, if key matches
+		Datum[] tuple = mangfile.readOptimistic(rownumber, probe);
+		if (tuple != null)
 		{
-			return d.read(d.find(key));
+			return tuple;
 		}
-
-		else // if key not matched then go to overflow page
+		// if key not matched then go to overflow page
+		int overflowind = next[0];
+		int oldval = 0;
+		while (overflowind != -1)
 		{
-			int overflowind = DatumSerialization.read(b,0,Schema.Type.INT).toInt();
-
-			if (overflowind != -1) {
-				while(true)
-				{
-					try{
-						b = mangfile.getBuffer(overflowind);
-						d = new DatumBuffer(b, inkeyspec.rowSchema());
-						position = d.find(key);// inside this buffer, check whether key is present or not
-						tuple = d.read(position);
-						somekey = inkeyspec.createKey(tuple);
-						if (inkeyspec.compare(somekey, key) == 0) // frontend buckets with the key, if key matches
-						{
-							return d.read(d.find(key));
-						}
-						oldval = overflowind;
-						overflowind = (DatumSerialization.read(b, 0,inkeyspec.rowSchema()))[0].toInt();
-					}//end of try
-					catch(Exception e2)
-					{
-						break;
-					}
-				}
-			}//end of if (overflowind != -1)
+			try{
+				tuple = mangfile.readOptimistic(overflowind, probe);// inside this buffer, check whether key is present or not
+			}
+			catch(Exception e2)
+			{
+				break;
+			}
+			if (tuple != null)
+			{
+				return tuple;
+			}
+			oldval = overflowind;
+			overflowind = next[0];
 		}
 		//for page with -1
-		b = mangfile.getBuffer(oldval);
-		d = new DatumBuffer(b, inkeyspec.rowSchema());
-		position = d.find(key);// inside this buffer, check whether key is present or not
-		tuple = d.read(position);
-		somekey = inkeyspec.createKey(tuple);
-		if (inkeyspec.compare(somekey, key) == 0) // frontend buckets with the key, if key matches
-		{
-			return d.read(d.find(key));
-		}
-		return null;
+		return mangfile.readOptimistic(oldval, probe);
 	}
 }
\ No newline at end of file
@@ -17,18 +17,72 @@ import edu.buffalo.cse.sql.SqlException;
 import edu.buffalo.cse.sql.data.Datum;
 import edu.buffalo.cse.sql.data.Datum.CastError;
 import edu.buffalo.cse.sql.data.DatumBuffer;
+import edu.buffalo.cse.sql.data.KeyEncoding;
+import edu.buffalo.cse.sql.data.RowLayout;
+import edu.buffalo.cse.sql.data.RowView;
 import edu.buffalo.cse.sql.data.DatumSerialization;
 import edu.buffalo.cse.sql.data.InsufficientSpaceException;
 import edu.buffalo.cse.sql.buffer.BufferManager;
 import edu.buffalo.cse.sql.buffer.BufferException;
 import edu.buffalo.cse.sql.buffer.ManagedFile;
 import edu.buffalo.cse.sql.buffer.FileManager;
+import edu.buffalo.cse.sql.buffer.PageReader;
 import edu.buffalo.cse.sql.test.TestDataStream;
 
 public class ISAMIndex implements IndexFile {
 
 	private ManagedFile file;
 	private IndexKeySpec keySpec;
+	/*Picks children of index pages for a search key in KeyEncoding form:
+	 * a binary search over a page's entries, with each entry's key encoded
+	 * into [scratch] (reused from one entry, and one page, to the next) and
+	 * compared to the search key as bytes*/
+	static class KeySearch {
+		final byte[] key;
+		final RowView entry;
+		final int[] cols;
+		byte[] scratch = new byte[64];
+
+		KeySearch(byte[] key, Schema.Type[] keyType)
+		{
+			this.key = key;
+			this.entry = new RowView(keyType);
+			this.cols = new int[keyType.length-2];
+			for(int i=0;i<cols.length;i++)
+				cols[i] = i+1;
+		}
+
+		boolean isIndexPage(DatumBuffer db)
+		{
+			return db.view(0, entry).getInt(0) == -2;
+		}
+
+		/*As childPage(): the left child of the first entry greater than the
+		 * key, the right child of the last entry if there is none, or -1 if
+		 * the page has no entries*/
+		int childPage(DatumBuffer db)
+		{
+			int n = db.length()-1;
+			if(n <= 0) return -1;
+			int lo = 0, hi = n;
+			while(lo < hi)
+			{
+				int mid = (lo + hi) >>> 1;
+				db.view(mid+1, entry);
+				int len = KeyEncoding.length(entry, cols);
+				if(len > scratch.length)
+					scratch = new byte[Math.max(len, 2*scratch.length)];
+				KeyEncoding.encode(entry, cols, scratch);
+				if(KeyEncoding.compare(key, scratch, len) < 0)
+					hi = mid;
+				else
+					lo = mid + 1;
+			}
+			db.view((lo < n) ? lo+1 : n, entry);
+			return (lo < n) ? entry.getInt(0) : entry.getInt(entry.size()-1);
+		}
+	}
+
 	public ISAMIndex(ManagedFile file, IndexKeySpec keySpec)
 	throws IOException, SqlException
 	{
@@ -43,6 +97,7 @@ public class ISAMIndex implements IndexFile {
 	throws SqlException, IOException
 	{
 		ManagedFile mf = fm.open(path);
+		mf.setSyncOnEvict(false);//durable once fm.close() flushes
 		mf.resize(1);
 		ByteBuffer b;
 		DatumBuffer db=null;
@@ -50,6 +105,7 @@ public class ISAMIndex implements IndexFile {
 		int countPages = 0;//Total no. of pages
 		long countBytes=0;
 		Datum[] keyDatum = null;
+		RowLayout layout = new RowLayout(key.rowSchema());
 
 		int count=0;
 
@@ -58,13 +114,12 @@ public class ISAMIndex implements IndexFile {
 		{
 			count++;
 			Datum tuple[] = dataSource.next();
-			b = mf.getBuffer(countPages);
-			db = new DatumBuffer(b,key.rowSchema());
+			b = mf.pin(countPages);//pages are only modified while pinned
+			db = new DatumBuffer(b,key.rowSchema()).layout(layout);
 			if(countBytes==0)
 				db.initialize();
 			try
 			{
-				mf.pin(countPages);
 				db.write(tuple);
 				mf.unpin(countPages,true);
 				countBytes+=DatumSerialization.getLength(tuple);
@@ -77,10 +132,9 @@ public class ISAMIndex implements IndexFile {
 				countPages++;
 				countBytes=0;
 				mf.resize(countPages+1);//We resize when we increase the no. of pages
-				b = mf.getBuffer(countPages);
-				db = new DatumBuffer(b, key.rowSchema());
+				b = mf.pin(countPages);
+				db = new DatumBuffer(b, key.rowSchema()).layout(layout);
 				db.initialize();
-				mf.pin(countPages);
 				db.write(tuple);
 				mf.unpin(countPages,true);
 				countBytes+=DatumSerialization.getLength(tuple);
@@ -117,7 +171,7 @@ public class ISAMIndex implements IndexFile {
 			for(Datum[] keyD:keyBufferMap.keySet())
 			{
 				count++;
-				ByteBuffer b = mf.getBuffer(countPages);
+				ByteBuffer b = mf.pin(countPages);//pages are only modified while pinned
 				DatumBuffer db = new DatumBuffer(b, null);
 				if(countBytes == 0)
 					db.initialize();
@@ -128,7 +182,6 @@ public class ISAMIndex implements IndexFile {
 						keyPointer[i+1] = keyD[i];
 					keyPointer[keyPointer.length-1] = new Datum.Int(keyBufferMap.get(keyD)+1);
 
-					mf.pin(countPages);
 					if(countBytes==0)
 					{
 						Datum[] indicator=new Datum[1];
@@ -147,12 +200,10 @@ public class ISAMIndex implements IndexFile {
 						temp[i-1] = keyPointerDatum[i];
 					keyBufferIndexMap.put(temp,countPages);//Storing tuples in page identified by countPage
 					if(count < keyBufferMap.size()){
+						//the next key starts (and initializes) the new page
 						countPages++;
 						countBytes=0;
 						mf.resize(countPages+1);
-						b = mf.getBuffer(countPages);
-						db = new DatumBuffer(b,null);
-						db.initialize();
 					}
 				}
 			}
@@ -280,6 +331,23 @@ public class ISAMIndex implements IndexFile {
 		return result;
 	}
 
+	/*Number of pages a lookup visits: every index level plus the leaf level*/
+	public int height()
+	throws BufferException, IOException, CastError
+	{
+		Schema.Type[] pointerType = { Type.INT };
+		int page = file.size()-1;
+		int height = 1;
+		DatumBuffer db = new DatumBuffer(file.getBuffer(page), pointerType);
+		while(db.read(0)[0].toInt() == -2)
+		{
+			page = db.read(1)[0].toInt();
+			db = new DatumBuffer(file.getBuffer(page), pointerType);
+			height++;
+		}
+		return height;
+	}
+
 	public Datum[] getMaxRecords(int page, Schema.Type[] keyType) throws BufferException, IOException, CastError
 	{
 		ByteBuffer b = file.getBuffer(page);
@@ -310,25 +378,10 @@ public class ISAMIndex implements IndexFile {
 	{
 		ByteBuffer b = file.getBuffer(page);
 		DatumBuffer db = new DatumBuffer(b, keyType);
-		Datum[] keyPointer = db.read(0);
-		if(keyPointer[0].equals(new Datum.Int(-2)))
+		RowView entry = new RowView(keyType);
+		if(db.view(0, entry).getInt(0) == -2)
 		{
-			int nextPage=-1;
-			for(int i=1;i<db.length();i++)
-			{
-				keyPointer = db.read(i);
-				Datum[] keyToBeCompared = new Datum[keyPointer.length-2];
-				for(int j=0;j<keyToBeCompared.length;j++)
-					keyToBeCompared[j] = keyPointer[j+1];
-				if(keySpec.compare(toKey,keyToBeCompared)<0)
-				{
-					nextPage = keyPointer[0].toInt();
-					break;
-				}
-				else if(keySpec.compare(toKey,keyToBeCompared)>=0)
-					nextPage = keyPointer[keyPointer.length-1].toInt();
-			}
-			return getMaxRecords(nextPage, keyType,toKey);
+			return getMaxRecords(childPage(db, entry, toKey), keyType,toKey);
 		}
 		else
 		{
@@ -378,38 +431,17 @@ public class ISAMIndex implements IndexFile {
 	{
 		ByteBuffer b = file.getBuffer(page);
 		DatumBuffer db = new DatumBuffer(b, keyType);
-		Datum[] keyPointer = db.read(0);
-		if(keyPointer[0].equals(new Datum.Int(-2)))
+		RowView entry = new RowView(keyType);
+		if(db.view(0, entry).getInt(0) == -2)
 		{
-			int nextPage=-1;
-			for(int i=1;i<db.length();i++)
-			{
-				keyPointer = db.read(i);
-				Datum[] keyToBeCompared = new Datum[keyPointer.length-2];
-				for(int j=0;j<keyToBeCompared.length;j++)
-					keyToBeCompared[j] = keyPointer[j+1];
-				if(keySpec.compare(fromKey,keyToBeCompared)<0)
-				{
-					nextPage = keyPointer[0].toInt();
-					break;
-				}
-				else if(keySpec.compare(fromKey,keyToBeCompared)>=0)
-					nextPage = keyPointer[keyPointer.length-1].toInt();
-			}
-			return getFromRecord(nextPage, keyType,fromKey);
+			return getFromRecord(childPage(db, entry, fromKey), keyType,fromKey);
 		}
 		else
 		{
-			keyType = new Schema.Type[keySpec.rowSchema().length];
-			for(int i=0;i<keySpec.rowSchema().length;i++)
-				keyType[i]=keySpec.rowSchema()[i];
-
-			db = new DatumBuffer(b, keyType);
+			RowView row = new RowView(keySpec.rowSchema());
 			for(int i=0;i<db.length();i++)
 			{
-				Datum[] tuple = db.read(i);
-				Datum[] keyComp = keySpec.createKey(tuple);
-				if(keySpec.compare(fromKey,keyComp)<=0)
+				if(keySpec.compareKey(db.view(i, row),fromKey)>=0)
 				{
 					Datum[] result=new Datum[2];
 					result[0] = new Datum.Int(page);
@@ -421,49 +453,85 @@ public class ISAMIndex implements IndexFile {
 		return null;
 	}
 
-	public Datum[] getDatumTuple(int page,Schema.Type[] keyType,Datum[] key) throws BufferException, IOException, CastError
+
+	/*Walks from [page] down to the leaf that may hold [key], reading each
+	 * page optimistically (see ManagedFile.readOptimistic()), so that
+	 * concurrent lookups don't contend on the pins of the upper levels.  A
+	 * key of the key schema's types is encoded once (see KeySearch), and
+	 * index pages are searched by comparing bytes*/
+	public Datum[] getDatumTuple(int page,final Schema.Type[] keyType,final Datum[] key) throws BufferException, IOException, CastError
 	{
-		ByteBuffer b;
-		b = file.getBuffer(page);
-		DatumBuffer db = new DatumBuffer(b,keyType);
-		Datum[] keyPointer = db.read(0);
-		int nextPage = -1;
-		if(keyPointer[0].equals(new Datum.Int(-2)))
-		{
-			for(int i=1;i<db.length();i++)
+		byte[] encoded = keySpec.encodeKey(key);
+		final KeySearch keySearch = (encoded != null) ? new KeySearch(encoded, keyType) : null;
+		final int[] nextPage = new int[1];
+		PageReader<Datum[], CastError> search = new PageReader<Datum[], CastError>() {
+			public Datum[] read(ByteBuffer b) throws CastError
 			{
-				keyPointer = db.read(i);
-				Datum[] keyToBeCompared = new Datum[keyPointer.length-2];
-				for(int j=0;j<keyToBeCompared.length;j++)
-					keyToBeCompared[j] = keyPointer[j+1];
-
-				if(keySpec.compare(key,keyToBeCompared)<0)
+				nextPage[0] = -1;
+				if(keySearch != null)
 				{
-					nextPage = keyPointer[0].toInt();
-					break;
+					DatumBuffer db = new DatumBuffer(b,keyType);
+					if(keySearch.isIndexPage(db))
+					{
+						nextPage[0] = keySearch.childPage(db);
+						return null;
+					}
 				}
-				else if(keySpec.compare(key,keyToBeCompared)>=0)
-					nextPage = keyPointer[keyPointer.length-1].toInt();
+				return searchPage(b, keyType, key, nextPage);
 			}
-			return getDatumTuple(nextPage, keyType,key);
+		};
+		while(true)
+		{
+			Datum[] tuple = file.readOptimistic(page, search);
+			if(nextPage[0] < 0)
+				return tuple;
+			page = nextPage[0];
+		}
+	}
+
+	/*Searches a single page: an index page sets nextPage[0] to the child to
+	 * descend into, a leaf page returns the matching tuple (if any)*/
+	protected Datum[] searchPage(ByteBuffer b,Schema.Type[] keyType,Datum[] key,int[] nextPage) throws CastError
+	{
+		DatumBuffer db = new DatumBuffer(b,keyType);
+		RowView entry = new RowView(keyType);
+		if(db.view(0, entry).getInt(0) == -2)
+		{
+			nextPage[0] = childPage(db, entry, key);
+			return null;
 		}
 		else
 		{
-
-			keyType=new Schema.Type[keySpec.rowSchema().length];
-			for(int i=0;i<keySpec.rowSchema().length;i++)
-				keyType[i]=keySpec.rowSchema()[i];
-
-			db = new DatumBuffer(b, keyType);
+			RowView row = new RowView(keySpec.rowSchema());
 			for(int i=0;i<db.length();i++)
 			{
-				Datum[] tuple = db.read(i);
-				Datum[] keyComp = keySpec.createKey(tuple);
-				if(keySpec.compare(key,keyComp)==0)
-					return tuple;
+				if(keySpec.compareKey(db.view(i, row),key)==0)
+					return row.toDatums();
 			}
 		}
 		return null;
 	}
 
+	/*Picks the child of index page [db] to descend into for [key].  Entries
+	 * are (left pointer, key, right pointer), and are compared in place
+	 * through [entry] rather than read*/
+	protected int childPage(DatumBuffer db, RowView entry, Datum[] key)
+	{
+		int nextPage=-1;
+		for(int i=1;i<db.length();i++)
+		{
+			db.view(i, entry);
+			int last = entry.size()-1;
+			if(entry.compareToFields(key,1,last)<0)
+			{
+				nextPage = entry.getInt(0);
+				break;
+			}
+			else
+				nextPage = entry.getInt(last);
+		}
+		return nextPage;
+	}
+
+
 }
\ No newline at end of file
@@ -5,7 +5,12 @@ import java.util.Iterator;
 
 import edu.buffalo.cse.sql.SqlException;
 import edu.buffalo.cse.sql.data.Datum;
+import edu.buffalo.cse.sql.data.PrimitiveRow;
 
 public interface IndexIterator extends Iterator<Datum[]> {
+  //As next(), but the row is returned as a PrimitiveRow that belongs to the
+  //iterator.  It stays valid through hasNext(), and is overwritten by the 
+  //next call to next() or nextRow().
+  public PrimitiveRow nextRow();
   public void close() throws SqlException;
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ package edu.buffalo.cse.sql.index;
 import java.util.Comparator;
 
 import edu.buffalo.cse.sql.data.Datum;
+import edu.buffalo.cse.sql.data.Row;
 import edu.buffalo.cse.sql.Schema;
 
 public interface IndexKeySpec extends Comparator<Datum[]> {
@@ -13,6 +14,15 @@ public interface IndexKeySpec extends Comparator<Datum[]> {
 
   public int hashKey(Datum[] key);
 
+  //As compare(createKey(row), key) and hashRow(row), for a row that hasn't
+  //been turned into Datums.
+  public int compareKey(Row row, Datum[] key);
+  public int hashRow(Row row);
+
+  //The key in an encoding whose bytes compare in the same order as compare()
+  //(see KeyEncoding), or null if its fields aren't of the key schema's types.
+  public byte[] encodeKey(Datum[] key);
+
   public Schema.Type[] rowSchema();
   public Schema.Type[] keySchema();
 }
\ No newline at end of file
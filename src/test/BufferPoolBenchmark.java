@@ -0,0 +1,2067 @@
+/**
+ * A stress test and benchmark driver for the buffer pool.  Like the other
+ * harnesses in this package, it is run from the command line:
+ *
+ *   java edu.buffalo.cse.sql.test.BufferPoolBenchmark <mode> [options]
+ *
+ * Modes:
+ *
+ * stress:     Hammer a single BufferManager from several threads.  Every
+ *             thread owns a set of pages that it repeatedly pins (allocating
+ *             a frame if the page was evicted), stamps, verifies and unpins.
+ *             Any frame handed to two owners at once, or evicted while pinned,
+ *             shows up as a corrupted stamp and fails the test.
+ *
+ * throughput: Report pin/unpin operations per second for 1, 2, 4 and 8
+ *             threads against the same pool.
+ *
+ * io:         Write a file of -filePages pages through a ManagedFile, then 
+ *             read it back through a cold pool, once with heap frames and 
+ *             once with an off-heap (direct) frame slab.  Reports MB/sec.
+ *
+ * pagesize:   Build an ISAM index over -rows rows of TestDataStream at each
+ *             page size from 1KB to 64KB (with a 16MB pool), and report the 
+ *             height of the tree and the average latency of a get().
+ *
+ * policy:     Microbenchmark the eviction policies on their own: a stream of
+ *             touches (as on every ManagedFile.getBuffer hit), with every
+ *             tenth operation an eviction (selectCandidate/remove/add).
+ *             Reports ns per operation for each policy.
+ *
+ * mixed:      Two threads repeatedly scan a -filePages page file while a third
+ *             does -ops Zipfian point reads against the same file.  Reports
+ *             the hit ratio of the point reads for LRU, CLOCK and 2Q.
+ *
+ * cleaner:    Bulk-write a -filePages page file through a small pool, first
+ *             with every eviction writing (and syncing) its own dirty page,
+ *             then with a BufferCleaner writing cold pages in the background.
+ *             Reports the load time, and the cleaner's counters.
+ *
+ * flush:      Bulk-write a -filePages page file three ways: through a small
+ *             pool syncing every evicted page, through a small pool deferring
+ *             the sync to close, and through a pool big enough to hold the
+ *             whole file, so that close() writes every page in one flush.
+ *
+ * scan:       Build an ISAM index over -rows rows of TestDataStream, then 
+ *             time full scans of it through a cold pool, with and without
+ *             sequential read-ahead (a window of READ_AHEAD pages).  With
+ *             -dropCaches (Linux, as root), the OS page cache is dropped 
+ *             before every scan.
+ *
+ * mmap:       Build an ISAM index over -rows rows of TestDataStream, then 
+ *             compare get() latency through a -frames frame buffer pool with
+ *             get() latency on the same file opened memory-mapped.
+ *
+ * quota:      Interleave -ops uniform point reads over a hot file of 
+ *             frames/2 pages with writes streaming through a -filePages 
+ *             page temp file.  Reports the hot file's hit ratio with a 
+ *             shared pool, with the temp file capped at frames/8, and with
+ *             the hot file reserving frames/2 frames.
+ *
+ * open:       Open a (sparse) 10GB file, read 1000 random pages, and double
+ *             its size.  Reports the time taken, and the heap used.
+ *
+ * grow:       Append -filePages pages to a new file one page at a time.
+ *
+ * range:      Read a -filePages page file through a cold pool one page at a
+ *             time, and with pinRange() 8 and 64 pages at a time, with heap
+ *             and direct frames.  Reports MB/sec.
+ *
+ * lookup:     Build an ISAM index over -rows rows of TestDataStream, then
+ *             run get() from 1, 2, 4 and 8 threads at once: pinning every
+ *             page on the way down, reading every page optimistically 
+ *             (unpinned, with readOptimistic()), and as ISAMIndex does it 
+ *             (optimistically, comparing encoded keys).  Reports thousands 
+ *             of gets per second.
+ *
+ * optimistic: Read random pages of a small file with readOptimistic() from
+ *             -threads threads, while one more thread keeps rewriting them
+ *             (under a pin) with a single value per page.  Fails if any 
+ *             read that wasn't done under a pin saw two different values 
+ *             in one page.  (Pins don't exclude each other, so a read that 
+ *             falls back to a pin may see a write in progress.)
+ *
+ * temp:       Write and read back a temp file of frames/4 pages (which fits
+ *             in the pool) and one of -filePages pages (which doesn't), and 
+ *             the same through a plain file, as openTemp() used to create.
+ *             Reports the time taken, and whether the temp file spilled.
+ *
+ * warm:       Build an ISAM index over -rows rows of TestDataStream, run 
+ *             -ops Zipfian get()s against it, and save a snapshot of the 
+ *             pool.  Then run the same workload through a fresh pool, once 
+ *             cold and once after loadSnapshot().  Reports the time until a
+ *             window of 1000 gets first reaches a 90% hit ratio.  Use 
+ *             -dropCaches to start each run from an empty OS page cache.
+ *
+ * dirty:      Touch every page of a (sparse) -filePages page file, then 
+ *             repeatedly dirty 10 random pages and flush().  Reports the 
+ *             average time per flush.
+ *
+ * compress:   Build an ISAM index over -rows rows of TestDataStream, plain 
+ *             and compressed with PackedIntCodec.  Reports the file sizes, 
+ *             the time of a full scan through a cold pool, and get() 
+ *             latency.  Use -dropCaches to scan from an empty OS page cache.
+ *
+ * async:      Read random pages of a -filePages page file through a 
+ *             -frames frame pool with pinAsync(), keeping 1, 8 and 32 reads
+ *             in flight.  Reports pages per second at each queue depth.  Use
+ *             -dropCaches to read from an empty OS page cache.
+ *
+ * rows:       Build an ISAM index over -rows rows of TestDataStream, then
+ *             scan it (from a warm OS page cache), summing one column, once
+ *             with next() (a new Datum[] per row) and once with nextRow()
+ *             (one reused PrimitiveRow).  Reports rows per second and bytes
+ *             allocated per row.
+ *
+ * probe:      Build an ISAM index over -rows rows of TestDataStream, then run
+ *             get() against it (through a pool big enough to hold it) from 
+ *             one thread.  Reports the average latency and the bytes 
+ *             allocated per get().
+ *
+ * layout:     Write -rows rows of TestDataStream into 4KB pages through 
+ *             DatumBuffer.write(), then read them back with read() and 
+ *             read(idx, PrimitiveRow).  Reports millions of rows per second
+ *             for each.
+ *
+ * strings:    Build two ISAM indexes over -rows rows each, one keyed on a
+ *             STRING column and one on an INT column, and run get() against
+ *             both.  Also writes and reads the string-keyed rows through 
+ *             4KB pages.  Reports us per get() and millions of rows per 
+ *             second.
+ *
+ * stats:      Write -rows rows of TestDataStream into a file, then scan it
+ *             (with DatumStreamIterator) through a pool big enough to hold
+ *             it, cold and then warm, and read every page with getBuffer().
+ *             Fails unless the file's hit and miss counters come out as
+ *             exactly one miss (cold) or one hit (warm) per page.
+ *
+ * stringcheck: Write -ops random strings (with quotes, NULs, and 2, 3 and 4
+ *             byte UTF-8 chars) into heap and direct pages, and check that 
+ *             readString(), compareString() and hashString() agree with 
+ *             Datum.Str on each of them.  Fails on any mismatch.
+ *
+ * keycheck:   Encode -ops pairs of random keys (of INT, FLOAT, STRING, BOOL
+ *             and INT fields, with from 1 to all 5 of them) with KeyEncoding,
+ *             and check that KeyEncoding.compare() orders each pair as 
+ *             Datum.compareRows() does, and that encoding a whole key from a
+ *             Row gives the same bytes.  Fails on any mismatch.
+ *
+ * codeccheck: Compress and decompress -ops/100 random pages (runs of zeroes,
+ *             Integer.MIN_VALUE and other extreme words, small ints, and 
+ *             random bits) of 1KB to 64KB with PackedIntCodec.  Then write 
+ *             such pages to a compressed file of 4 x -frames pages through a
+ *             -frames frame pool, rewrite a third of them (so that pages 
+ *             shrink in place and move to new slots), and read the file back
+ *             after reopening it.  Fails unless every page comes back as it 
+ *             was written.
+ *
+ * Options:
+ *   -frames N   Frames in the buffer pool (default 256)
+ *   -pages N    Pages owned by each thread (default 512)
+ *   -threads N  Threads used by the stress test (default 8)
+ *   -ops N      Operations per thread (default 200000)
+ *   -filePages N  Pages in the file used by the io test (default 16384)
+ *   -rows N     Rows indexed by the pagesize, scan and mmap tests
+ *               (default 100000)
+ *   -dropCaches Drop the OS page cache before each scan in the scan test
+ *   -policy P   Eviction policy for the stress, throughput and io tests
+ *               (lru, clock or 2q; default lru)
+ **/
+
+package edu.buffalo.cse.sql.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.buffalo.cse.sql.Schema;
+import edu.buffalo.cse.sql.SqlException;
+import edu.buffalo.cse.sql.data.Datum;
+import edu.buffalo.cse.sql.data.DatumBuffer;
+import edu.buffalo.cse.sql.data.DatumSerialization;
+import edu.buffalo.cse.sql.data.InsufficientSpaceException;
+import edu.buffalo.cse.sql.data.KeyEncoding;
+import edu.buffalo.cse.sql.data.PrimitiveRow;
+import edu.buffalo.cse.sql.index.DatumStreamIterator;
+import edu.buffalo.cse.sql.index.GenericIndexKeySpec;
+import edu.buffalo.cse.sql.index.ISAMIndex;
+import edu.buffalo.cse.sql.index.IndexIterator;
+import edu.buffalo.cse.sql.index.IndexKeySpec;
+import edu.buffalo.cse.sql.buffer.BufferCleaner;
+import edu.buffalo.cse.sql.buffer.BufferException;
+import edu.buffalo.cse.sql.buffer.BufferManager;
+import edu.buffalo.cse.sql.buffer.BufferQuota;
+import edu.buffalo.cse.sql.buffer.BufferStats;
+import edu.buffalo.cse.sql.buffer.ClockEvictionPolicy;
+import edu.buffalo.cse.sql.buffer.EvictionCallback;
+import edu.buffalo.cse.sql.buffer.EvictionPolicy;
+import edu.buffalo.cse.sql.buffer.FileManager;
+import edu.buffalo.cse.sql.buffer.LRUEvictionPolicy;
+import edu.buffalo.cse.sql.buffer.ManagedFile;
+import edu.buffalo.cse.sql.buffer.PackedIntCodec;
+import edu.buffalo.cse.sql.buffer.PageReader;
+import edu.buffalo.cse.sql.buffer.TwoQueueEvictionPolicy;
+
+public class BufferPoolBenchmark {
+
+  //Read-ahead window the scan test turns on (files default to none).
+  static final int READ_AHEAD = 64;
+
+  int frames = 256;
+  int pages = 512;
+  int threads = 8;
+  int ops = 200000;
+  int filePages = 16384;
+  int rows = 100000;
+  String policyName = "lru";
+  boolean dropCaches = false;
+
+  /**
+   * A stand-in for ManagedFile.Page: remembers which frame it lives in, and
+   * follows the same locking protocol (the page monitor guards its frame).
+   **/
+  static class StressPage implements EvictionCallback {
+    final int id;
+    volatile int frame = -1;
+    int stamp = 0;
+
+    StressPage(int id) { this.id = id; }
+
+    public synchronized void evict(int f)
+    {
+      if(frame == f){ frame = -1; }
+    }
+  }
+
+  /**
+   * Pin page [p], loading it into a new frame if it isn't resident (and 
+   * counting that as a miss, if [misses] is given).
+   **/
+  static int acquire(BufferManager pool, StressPage p, AtomicLong misses)
+    throws BufferException
+  {
+    while(true){
+      synchronized(p){
+        if(p.frame < 0){
+          int f = pool.allocate(p, true);
+          ByteBuffer b = pool.get(f);
+          b.putInt(0, p.id);
+          b.putInt(4, p.stamp);
+          p.frame = f;
+          if(misses != null){ misses.incrementAndGet(); }
+          return f;
+        }
+        if(pool.tryPin(p.frame, p)){ return p.frame; }
+      }
+      Thread.yield();
+    }
+  }
+
+  /**
+   * Zipfian distribution over [0, n): item i is picked with probability 
+   * proportional to 1/(i+1)^s.
+   **/
+  static class Zipf {
+    final double[] cdf;
+    final Random rand;
+
+    Zipf(int n, double s, int seed)
+    {
+      cdf = new double[n];
+      double sum = 0;
+      for(int i = 0; i < n; i++){
+        sum += 1.0 / Math.pow(i+1, s);
+        cdf[i] = sum;
+      }
+      for(int i = 0; i < n; i++){ cdf[i] /= sum; }
+      rand = new Random(seed);
+    }
+
+    int next()
+    {
+      int i = java.util.Arrays.binarySearch(cdf, rand.nextDouble());
+      return (i >= 0) ? i : Math.min(-i-1, cdf.length-1);
+    }
+  }
+
+  /**
+   * Repeatedly scans every page of a file, pinning one page at a time like
+   * DatumStreamIterator, until told to stop.
+   **/
+  static class Scanner extends Thread {
+    final BufferManager pool;
+    final StressPage[] file;
+    volatile boolean done = false;
+
+    Scanner(BufferManager pool, StressPage[] file)
+    {
+      this.pool = pool;
+      this.file = file;
+    }
+
+    public void run()
+    {
+      try {
+        while(!done){
+          for(int i = 0; i < file.length && !done; i++){
+            pool.unpin(acquire(pool, file[i], null));
+          }
+        }
+      } catch(BufferException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  static class Worker extends Thread {
+    final BufferManager pool;
+    final StressPage[] owned;
+    final int ops;
+    final Random rand;
+    final AtomicLong failures;
+
+    Worker(BufferManager pool, StressPage[] owned, int ops, int seed,
+           AtomicLong failures)
+    {
+      this.pool = pool;
+      this.owned = owned;
+      this.ops = ops;
+      this.rand = new Random(seed);
+      this.failures = failures;
+    }
+
+    public void run()
+    {
+      try {
+        for(int i = 0; i < ops; i++){
+          StressPage p = owned[rand.nextInt(owned.length)];
+          int f = acquire(pool, p, null);
+          ByteBuffer b = pool.get(f);
+          if(b.getInt(0) != p.id || b.getInt(4) != p.stamp){
+            failures.incrementAndGet();
+          }
+          p.stamp++;
+          b.putInt(4, p.stamp);
+          pool.touch(rand.nextInt(pool.size()));
+          pool.unpin(f);
+        }
+      } catch(BufferException e) {
+        e.printStackTrace();
+        failures.incrementAndGet();
+      }
+    }
+  }
+
+  long run(BufferManager pool, int threadCount, AtomicLong failures)
+    throws InterruptedException
+  {
+    Worker[] workers = new Worker[threadCount];
+    for(int t = 0; t < threadCount; t++){
+      StressPage[] owned = new StressPage[pages];
+      for(int i = 0; i < pages; i++){ owned[i] = new StressPage(t*pages+i); }
+      workers[t] = new Worker(pool, owned, ops, 52982+t, failures);
+    }
+    long start = System.nanoTime();
+    for(Worker w : workers){ w.start(); }
+    for(Worker w : workers){ w.join(); }
+    return System.nanoTime() - start;
+  }
+
+  public boolean stress()
+    throws InterruptedException
+  {
+    AtomicLong failures = new AtomicLong(0);
+    BufferManager pool = pool(false);
+    long nanos = run(pool, threads, failures);
+    System.out.println("Stress: "+threads+" threads x "+ops+" ops in "+
+                       (nanos / 1000000)+" ms; "+failures.get()+" failures");
+    return failures.get() == 0;
+  }
+
+  public void throughput()
+    throws InterruptedException
+  {
+    //warm up the JIT before taking any measurements
+    run(pool(false), 1, new AtomicLong(0));
+    for(int t = 1; t <= 8; t *= 2){
+      AtomicLong failures = new AtomicLong(0);
+      BufferManager pool = pool(false);
+      long nanos = run(pool, t, failures);
+      double opsPerSec = ((double)t * ops) / (nanos / 1e9);
+      System.out.println(String.format("%d threads: %.0f ops/sec", t, opsPerSec));
+    }
+  }
+
+  BufferManager pool(boolean direct)
+  {
+    return new BufferManager(frames, policy(policyName, frames), direct);
+  }
+
+  static double mbPerSec(long bytes, long nanos)
+  {
+    return ((double)bytes / (1024*1024)) / (nanos / 1e9);
+  }
+
+  public void io()
+    throws BufferException, IOException
+  {
+    //the first round just warms up the JIT
+    for(int round = 0; round < 2; round++){
+      for(boolean direct : new boolean[] { false, true }){
+        String result = ioRound(direct);
+        if(round > 0){ System.out.println(result); }
+      }
+    }
+  }
+
+  String ioRound(boolean direct)
+    throws BufferException, IOException
+  {
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+
+    FileManager fm = new FileManager(pool(direct));
+    ManagedFile file = fm.open(path);
+    file.resize(filePages);
+    long start = System.nanoTime();
+    for(int i = 0; i < filePages; i++){
+      ByteBuffer b = file.pin(i);
+      for(int j = 0; j < b.limit(); j += 4){ b.putInt(j, i+j); }
+      file.unpin(i, true);
+    }
+    fm.close(path);
+    long writeNanos = System.nanoTime() - start;
+
+    fm = new FileManager(pool(direct));
+    file = fm.open(path);
+    long checksum = 0;
+    start = System.nanoTime();
+    for(int i = 0; i < filePages; i++){
+      ByteBuffer b = file.getBuffer(i);
+      checksum += b.getInt(b.limit() - 4);
+    }
+    long readNanos = System.nanoTime() - start;
+    long bytes = (long)filePages * file.getPageSize();
+    fm.close(path);
+    path.delete();
+
+    return String.format(
+        "%s frames: write %.1f MB/sec, read %.1f MB/sec (checksum %d)",
+        direct ? "direct" : "heap", mbPerSec(bytes, writeNanos), 
+        mbPerSec(bytes, readNanos), checksum);
+  }
+
+  //Read a -filePages page file through a cold pool, [run] pages at a time
+  //(with pinRange() if run > 1).  Returns MB/sec.
+  double rangeRound(File path, int run, boolean direct)
+    throws BufferException, IOException
+  {
+    FileManager fm = new FileManager(pool(direct));
+    ManagedFile file = fm.open(path);
+    long checksum = 0;
+    long start = System.nanoTime();
+    for(int i = 0; i < filePages; i += run){
+      int n = Math.min(run, filePages - i);
+      if(n == 1){
+        checksum += file.pin(i).getInt(0);
+        file.unpin(i);
+      } else {
+        for(ByteBuffer b : file.pinRange(i, n)){ checksum += b.getInt(0); }
+        file.unpinRange(i, n, false);
+      }
+    }
+    long nanos = System.nanoTime() - start;
+    fm.close(path);
+    if(checksum != ((long)filePages * (filePages - 1)) / 2){
+      System.out.println("Bad checksum "+checksum);
+    }
+    return mbPerSec((long)filePages * file.getPageSize(), nanos);
+  }
+
+  public void range()
+    throws BufferException, IOException
+  {
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    path.delete();
+    FileManager fm = new FileManager(pool(false));
+    ManagedFile file = fm.open(path);
+    file.setSyncOnEvict(false);
+    file.resize(filePages);
+    for(int i = 0; i < filePages; i++){
+      file.pin(i).putInt(0, i);
+      file.unpin(i, true);
+    }
+    fm.close(path);
+    for(int round = 0; round < 3; round++){
+      for(boolean direct : new boolean[] { false, true }){
+        StringBuilder sb = new StringBuilder(direct ? "direct:" : "heap:  ");
+        for(int run : new int[] { 1, 8, 64 }){
+          sb.append(String.format("  %2d pages/read %7.1f MB/sec", 
+                                  run, rangeRound(path, run, direct)));
+        }
+        if(round > 0){ System.out.println(sb); }
+      }
+    }
+    path.delete();
+  }
+
+  static EvictionPolicy policy(String name, int frames)
+  {
+    if(name.equals("clock")){ return new ClockEvictionPolicy(frames); }
+    if(name.equals("2q")){ return new TwoQueueEvictionPolicy(frames); }
+    return new LRUEvictionPolicy();
+  }
+
+  long policyRound(EvictionPolicy policy)
+  {
+    Random rand = new Random(52982);
+    for(int i = 0; i < frames; i++){ policy.add(i); }
+    long start = System.nanoTime();
+    for(int i = 0; i < ops; i++){
+      if(i % 10 == 0){
+        int victim = policy.selectCandidate();
+        policy.remove(victim);
+        policy.add(victim);
+      } else {
+        policy.touch(rand.nextInt(frames));
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  double mixedRound(String name)
+    throws BufferException, InterruptedException
+  {
+    BufferManager pool = new BufferManager(frames, policy(name, frames));
+    StressPage[] file = new StressPage[filePages];
+    for(int i = 0; i < filePages; i++){ file[i] = new StressPage(i); }
+    Scanner[] scanners = { new Scanner(pool, file), new Scanner(pool, file) };
+    for(Scanner scan : scanners){ scan.start(); }
+
+    Zipf zipf = new Zipf(filePages, 1.0, 52982);
+    AtomicLong misses = new AtomicLong(0);
+    for(int i = 0; i < ops; i++){
+      pool.unpin(acquire(pool, file[zipf.next()], misses));
+    }
+    for(Scanner scan : scanners){ scan.done = true; scan.join(); }
+    return 1.0 - ((double)misses.get() / ops);
+  }
+
+  public void mixed()
+    throws BufferException, InterruptedException
+  {
+    for(String name : new String[] { "lru", "clock", "2q" }){
+      System.out.println(String.format("%-6s point read hit ratio %.3f", 
+                                       name, mixedRound(name)));
+    }
+  }
+
+  public void policies()
+  {
+    String[] names = { "lru", "clock", "2q" };
+    //the first round just warms up the JIT
+    for(int round = 0; round < 2; round++){
+      for(String name : names){
+        long nanos = policyRound(policy(name, frames));
+        if(round > 0){
+          System.out.println(String.format("%-6s %.1f ns/op", name, 
+                                           (double)nanos / ops));
+        }
+      }
+    }
+  }
+
+  long bulkLoad(BufferManager pool)
+    throws BufferException, IOException
+  {
+    return bulkLoad(pool, true);
+  }
+
+  long bulkLoad(BufferManager pool, boolean syncOnEvict)
+    throws BufferException, IOException
+  {
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    FileManager fm = new FileManager(pool);
+    ManagedFile file = fm.open(path);
+    file.setSyncOnEvict(syncOnEvict);
+    file.resize(filePages);
+    long start = System.nanoTime();
+    for(int i = 0; i < filePages; i++){
+      ByteBuffer b = file.pin(i);
+      for(int j = 0; j < b.limit(); j += 4){ b.putInt(j, i+j); }
+      file.unpin(i, true);
+    }
+    fm.close(path);
+    long nanos = System.nanoTime() - start;
+    path.delete();
+    return nanos;
+  }
+
+  public void cleaner()
+    throws BufferException, IOException, InterruptedException
+  {
+    long plain = bulkLoad(pool(false));
+    System.out.println(String.format("no cleaner:   %d ms", plain / 1000000));
+
+    BufferManager pool = pool(false);
+    BufferCleaner cleaner = new BufferCleaner(pool, frames / 2, 100000, 1);
+    cleaner.start();
+    long cleaned = bulkLoad(pool);
+    cleaner.shutdown();
+    System.out.println(String.format("with cleaner: %d ms", cleaned / 1000000));
+    System.out.println(cleaner);
+  }
+
+  public void flush()
+    throws BufferException, IOException
+  {
+    for(int round = 0; round < 2; round++){
+      long synced = bulkLoad(pool(false), true);
+      long deferred = bulkLoad(pool(false), false);
+      BufferManager big = new BufferManager(filePages, policy(policyName, filePages));
+      long resident = bulkLoad(big, true);
+      if(round > 0){
+        System.out.println(String.format("sync on evict:      %d ms", synced / 1000000));
+        System.out.println(String.format("deferred sync:      %d ms", deferred / 1000000));
+        System.out.println(String.format("all dirty at close: %d ms", resident / 1000000));
+      }
+    }
+  }
+
+  //A benchmark that got a wrong answer hasn't measured anything: say so and
+  //exit with an error, so that a script running it notices.
+  static void fail(String why)
+  {
+    System.out.println(why);
+    System.out.println("Test Failed!");
+    System.exit(-1);
+  }
+
+  long scanRound(File path, IndexKeySpec keySpec, int readAhead)
+    throws SqlException, IOException
+  {
+    if(dropCaches){ dropCaches(); }
+    FileManager fm = new FileManager(pool(false));
+    ManagedFile file = fm.open(path);
+    file.setReadAhead(readAhead);
+    ISAMIndex idx = new ISAMIndex(file, keySpec);
+    long start = System.nanoTime();
+    IndexIterator scan = idx.scan();
+    int found = 0;
+    while(scan.hasNext()){ scan.next(); found++; }
+    scan.close();
+    long nanos = System.nanoTime() - start;
+    fm.close(path);
+    if(found != rows){ fail("Scan found "+found+" of "+rows+" rows"); }
+    return nanos;
+  }
+
+  //Ask Linux to drop the OS page cache, so that reads actually go to disk.
+  //Only works as root; otherwise the scans just read from the page cache.
+  static void dropCaches()
+  {
+    try {
+      java.io.FileWriter w = new java.io.FileWriter("/proc/sys/vm/drop_caches");
+      w.write("3");
+      w.close();
+    } catch(IOException e) {
+      System.err.println("Can't drop caches: "+e.getMessage());
+    }
+  }
+
+  public void scan()
+    throws SqlException, IOException
+  {
+    IndexKeySpec keySpec = 
+      new GenericIndexKeySpec(new TestDataStream(1, 4, 0).getSchema(), 1);
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    path.delete();
+    ISAMIndex.create(new FileManager(pool(false)), path, 
+                     new TestDataStream(1, 4, rows), keySpec);
+    for(int round = 0; round < 3; round++){
+      long plain = scanRound(path, keySpec, 0);
+      long ahead = scanRound(path, keySpec, READ_AHEAD);
+      if(round > 0){
+        System.out.println(String.format(
+            "no read-ahead: %d ms (%.2f Mrows/s); read-ahead: %d ms (%.2f Mrows/s)",
+            plain / 1000000, rows * 1000.0 / plain, 
+            ahead / 1000000, rows * 1000.0 / ahead));
+      }
+    }
+    path.delete();
+  }
+
+  long lookupRound(ISAMIndex idx, Datum[][] keys)
+    throws SqlException, IOException
+  {
+    long start = System.nanoTime();
+    for(Datum[] key : keys){
+      if(idx.get(key) == null){ fail("Lookup failed: "+Datum.stringOfRow(key)); }
+    }
+    return System.nanoTime() - start;
+  }
+
+  public void mmap()
+    throws SqlException, IOException
+  {
+    IndexKeySpec keySpec = 
+      new GenericIndexKeySpec(new TestDataStream(1, 4, 0).getSchema(), 1);
+    Datum[][] keys = sampleKeys(keySpec);
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    path.delete();
+    ISAMIndex.create(new FileManager(pool(false)), path, 
+                     new TestDataStream(1, 4, rows), keySpec);
+
+    FileManager buffered = new FileManager(pool(false));
+    ISAMIndex bufferedIdx = new ISAMIndex(buffered.open(path), keySpec);
+    FileManager mapped = new FileManager(pool(false));
+    ISAMIndex mappedIdx = new ISAMIndex(mapped.openMapped(path), keySpec);
+    //first rounds warm the pool, the page cache and the JIT
+    for(int round = 0; round < 4; round++){
+      long b = lookupRound(bufferedIdx, keys);
+      long m = lookupRound(mappedIdx, keys);
+      if(round >= 2){
+        System.out.println(String.format(
+          "buffered (%d frames): %.2f us/get; mapped: %.2f us/get",
+          frames, (b / 1000.0) / keys.length, (m / 1000.0) / keys.length));
+      }
+    }
+    buffered.close(path);
+    mapped.close(path);
+    path.delete();
+  }
+
+  //Point reads against a hot file of frames/2 pages, interleaved with writes
+  //streaming through a -filePages page temp file.  Returns the hit ratio of
+  //the point reads.
+  double quotaRound(int tempCap, int indexReserved)
+    throws BufferException, IOException
+  {
+    BufferManager pool = pool(false);
+    FileManager fm = new FileManager(pool);
+    if(tempCap > 0){ 
+      fm.setTempQuota(pool.createQuota("temp", 0, tempCap)); 
+    }
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    ManagedFile index = fm.open(path);
+    if(indexReserved > 0){
+      index.setQuota(pool.createQuota("index", indexReserved, frames));
+    }
+    int hotPages = frames / 2;
+    index.resize(hotPages);
+    ManagedFile temp = fm.openTemp(filePages);
+    temp.setSyncOnEvict(false);
+    Random rand = new Random(42);
+    for(int i = 0; i < ops; i++){
+      int p = rand.nextInt(hotPages);
+      index.pin(p);
+      index.unpin(p);
+      p = i % filePages;
+      ByteBuffer b = temp.pin(p);
+      b.putInt(0, i);
+      temp.unpin(p, true);
+      //the first pass through the hot set is cold misses; don't count it
+      if(i == hotPages * 4){ index.resetStats(); }
+    }
+    double hitRatio = index.getStats().getHitRatio();
+    fm.close(path);
+    fm.close(temp.getFile());
+    path.delete();
+    temp.getFile().delete();
+    return hitRatio;
+  }
+
+  public void quota()
+    throws BufferException, IOException
+  {
+    System.out.println(String.format(
+      "shared pool:                    hot file hit ratio %.3f", 
+      quotaRound(0, 0)));
+    System.out.println(String.format(
+      "temp capped at %4d frames:      hot file hit ratio %.3f", 
+      frames / 8, quotaRound(frames / 8, 0)));
+    System.out.println(String.format(
+      "hot file reserves %4d frames:   hot file hit ratio %.3f", 
+      frames / 2, quotaRound(0, frames / 2)));
+  }
+
+  static long usedHeap()
+  {
+    Runtime rt = Runtime.getRuntime();
+    System.gc();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  public void open()
+    throws BufferException, IOException
+  {
+    long bytes = 10L * 1024 * 1024 * 1024;
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    path.delete();
+    FileManager fm = new FileManager(pool(false));
+    fm.open(path);
+    fm.close(path);
+    //a sparse 10GB file; nothing is actually written
+    java.io.RandomAccessFile raf = new java.io.RandomAccessFile(path, "rw");
+    raf.setLength(bytes);
+    raf.close();
+
+    long heapBefore = usedHeap();
+    long start = System.nanoTime();
+    fm = new FileManager(pool(false));
+    ManagedFile file = fm.open(path);
+    long opened = System.nanoTime() - start;
+    Random rand = new Random(42);
+    start = System.nanoTime();
+    for(int i = 0; i < 1000; i++){ file.getBuffer(rand.nextInt(file.size())); }
+    long reads = System.nanoTime() - start;
+    long heap = usedHeap() - heapBefore;
+    System.out.println(String.format(
+      "opened %d pages in %.2f ms, 1000 random reads in %.2f ms, "+
+      "%.1f MB of heap", 
+      file.size(), opened / 1000000.0, reads / 1000000.0, 
+      heap / (1024.0 * 1024.0)));
+
+    start = System.nanoTime();
+    file.ensureSizeByDoubling(file.size() * 2);
+    System.out.println(String.format(
+      "doubled to %d pages in %.2f ms", 
+      file.size(), (System.nanoTime() - start) / 1000000.0));
+    fm.close(path);
+    path.delete();
+  }
+
+  //Append -filePages pages one at a time, as HashIndex.create does with its 
+  //overflow pages.
+  public void grow()
+    throws BufferException, IOException
+  {
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    path.delete();
+    FileManager fm = new FileManager(pool(false));
+    ManagedFile file = fm.open(path);
+    file.setSyncOnEvict(false);
+    long start = System.nanoTime();
+    for(int i = 0; i < filePages; i++){
+      file.ensureSize(file.size() + 1);
+      file.pin(i).putInt(0, i);
+      file.unpin(i, true);
+    }
+    fm.close(path);
+    long nanos = System.nanoTime() - start;
+    System.out.println(String.format(
+      "appended %d pages in %d ms (%.1f us/page); file is %d bytes",
+      filePages, nanos / 1000000, (nanos / 1000.0) / filePages, 
+      path.length()));
+    path.delete();
+  }
+
+  //Every 100th key in the data set, used as lookup targets.
+  Datum[][] sampleKeys(IndexKeySpec keySpec)
+  {
+    TestDataStream ds = new TestDataStream(1, 4, rows);
+    Datum[][] keys = new Datum[(rows + 99) / 100][];
+    for(int i = 0; ds.hasNext(); i++){
+      Datum[] row = ds.next();
+      if(i % 100 == 0){ keys[i / 100] = keySpec.createKey(row); }
+    }
+    return keys;
+  }
+
+  public void pageSizes()
+    throws SqlException, IOException
+  {
+    IndexKeySpec keySpec = 
+      new GenericIndexKeySpec(new TestDataStream(1, 4, 0).getSchema(), 1);
+    Datum[][] keys = sampleKeys(keySpec);
+    for(int pageSize = 1024; pageSize <= 65536; pageSize *= 2){
+      File path = File.createTempFile("SQL", ".bench");
+      path.deleteOnExit();
+      path.delete();
+      int poolFrames = (16 * 1024 * 1024) / pageSize;
+      FileManager fm = new FileManager(
+        new BufferManager(poolFrames, pageSize, new LRUEvictionPolicy(), false));
+      ISAMIndex.create(fm, path, new TestDataStream(1, 4, rows), keySpec);
+
+      fm = new FileManager(
+        new BufferManager(poolFrames, pageSize, new LRUEvictionPolicy(), false));
+      ISAMIndex idx = new ISAMIndex(fm.open(path), keySpec);
+      int found = 0;
+      long nanos = 0;
+      //first pass warms the pool and the JIT, the second is measured
+      for(int pass = 0; pass < 2; pass++){
+        found = 0;
+        long start = System.nanoTime();
+        for(Datum[] key : keys){
+          if(idx.get(key) != null){ found++; }
+        }
+        nanos = System.nanoTime() - start;
+      }
+      System.out.println(String.format(
+          "%6d byte pages: height %d, %.2f us/get (%d/%d found)",
+          pageSize, idx.height(), (nanos / 1000.0) / keys.length, 
+          found, keys.length));
+      fm.close(path);
+      path.delete();
+    }
+  }
+
+  //The lookup path ISAMIndex used before optimistic reads: pin every page
+  //on the way down.
+  static class PinnedISAMIndex extends ISAMIndex {
+    ManagedFile file;
+
+    PinnedISAMIndex(ManagedFile file, IndexKeySpec keySpec)
+      throws SqlException, IOException
+    {
+      super(file, keySpec);
+      this.file = file;
+    }
+
+    public Datum[] getDatumTuple(int page, Schema.Type[] keyType, Datum[] key)
+      throws BufferException, IOException, Datum.CastError
+    {
+      int[] nextPage = new int[1];
+      while(true){
+        nextPage[0] = -1;
+        Datum[] tuple;
+        try {
+          tuple = searchPage(file.pin(page), keyType, key, nextPage);
+        } finally {
+          file.unpin(page);
+        }
+        if(nextPage[0] < 0){ return tuple; }
+        page = nextPage[0];
+      }
+    }
+  }
+
+  //Reads every page on the way down with readOptimistic(), comparing keys as
+  //Datums.
+  static class OptimisticISAMIndex extends ISAMIndex {
+    ManagedFile file;
+
+    OptimisticISAMIndex(ManagedFile file, IndexKeySpec keySpec)
+      throws SqlException, IOException
+    {
+      super(file, keySpec);
+      this.file = file;
+    }
+
+    public Datum[] getDatumTuple(int page, final Schema.Type[] keyType, 
+                                 final Datum[] key)
+      throws BufferException, IOException, Datum.CastError
+    {
+      final int[] nextPage = new int[1];
+      PageReader<Datum[], Datum.CastError> search = 
+        new PageReader<Datum[], Datum.CastError>() {
+          public Datum[] read(ByteBuffer b) throws Datum.CastError
+          {
+            nextPage[0] = -1;
+            return searchPage(b, keyType, key, nextPage);
+          }
+        };
+      while(true){
+        Datum[] tuple = file.readOptimistic(page, search);
+        if(nextPage[0] < 0){ return tuple; }
+        page = nextPage[0];
+      }
+    }
+  }
+
+  //Run get() for every key from [threads] threads at once; returns the
+  //number of gets per second.
+  double lookupThreads(final ISAMIndex idx, final Datum[][] keys, int threads)
+    throws InterruptedException
+  {
+    final AtomicLong failed = new AtomicLong(0);
+    Thread[] workers = new Thread[threads];
+    for(int t = 0; t < threads; t++){
+      final int offset = t * 7919;
+      workers[t] = new Thread() {
+        public void run() {
+          try {
+            for(int i = 0; i < keys.length; i++){
+              if(idx.get(keys[(i + offset) % keys.length]) == null){ 
+                failed.incrementAndGet(); 
+              }
+            }
+          } catch(Exception e) {
+            e.printStackTrace();
+            failed.incrementAndGet();
+          }
+        }
+      };
+    }
+    long start = System.nanoTime();
+    for(Thread w : workers){ w.start(); }
+    for(Thread w : workers){ w.join(); }
+    long nanos = System.nanoTime() - start;
+    if(failed.get() > 0){ fail(failed.get()+" lookups failed"); }
+    return (double)keys.length * threads * 1000000000.0 / nanos;
+  }
+
+  public void lookup()
+    throws SqlException, IOException, InterruptedException
+  {
+    IndexKeySpec keySpec = 
+      new GenericIndexKeySpec(new TestDataStream(1, 4, 0).getSchema(), 1);
+    Datum[][] keys = sampleKeys(keySpec);
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    path.delete();
+    ISAMIndex.create(new FileManager(pool(false)), path, 
+                     new TestDataStream(1, 4, rows), keySpec);
+
+    FileManager fm = new FileManager(pool(false));
+    ManagedFile file = fm.open(path);
+    ISAMIndex pinned = new PinnedISAMIndex(file, keySpec);
+    ISAMIndex optimistic = new OptimisticISAMIndex(file, keySpec);
+    ISAMIndex encoded = new ISAMIndex(file, keySpec);
+    //the first round warms the pool and the JIT
+    for(int round = 0; round < 2; round++){
+      for(int t = 1; t <= 8; t *= 2){
+        double p = lookupThreads(pinned, keys, t);
+        double o = lookupThreads(optimistic, keys, t);
+        double e = lookupThreads(encoded, keys, t);
+        if(round > 0){
+          System.out.println(String.format(
+            "%d threads: pinned %.1f kgets/s; optimistic %.1f kgets/s; "+
+            "encoded keys %.1f kgets/s", 
+            t, p / 1000, o / 1000, e / 1000));
+        }
+      }
+    }
+    fm.close(path);
+    path.delete();
+  }
+
+  public boolean optimistic()
+    throws BufferException, IOException, InterruptedException
+  {
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    path.delete();
+    //Reads that fell back to readPinned() set the flag of their thread.
+    final ThreadLocal<boolean[]> pinned = new ThreadLocal<boolean[]>() {
+      protected boolean[] initialValue() { return new boolean[1]; }
+    };
+    final ManagedFile file = new ManagedFile(path, pool(false)) {
+      public <T, E extends Exception> T readPinned(int page, 
+                                                   PageReader<T, E> reader)
+        throws E, BufferException, IOException
+      {
+        pinned.get()[0] = true;
+        return super.readPinned(page, reader);
+      }
+    };
+    final int n = Math.max(1, Math.min(64, frames / 2));
+    file.resize(n);
+    for(int i = 0; i < n; i++){ file.pin(i); file.unpin(i, true); }
+    final AtomicLong torn = new AtomicLong(0);
+    final AtomicLong fallbacks = new AtomicLong(0);
+    final AtomicLong failed = new AtomicLong(0);
+    //true if every int in the page holds the same value
+    final PageReader<Boolean, RuntimeException> uniform = 
+      new PageReader<Boolean, RuntimeException>() {
+        public Boolean read(ByteBuffer b)
+        {
+          int v = b.getInt(0);
+          for(int j = 4; j < b.limit(); j += 4){
+            if(b.getInt(j) != v){ return false; }
+          }
+          return true;
+        }
+      };
+    Thread[] readers = new Thread[threads];
+    for(int t = 0; t < threads; t++){
+      final Random rand = new Random(t);
+      readers[t] = new Thread() {
+        public void run() {
+          try {
+            boolean[] fellBack = pinned.get();
+            for(int i = 0; i < ops; i++){
+              fellBack[0] = false;
+              boolean ok = file.readOptimistic(rand.nextInt(n), uniform);
+              if(fellBack[0]){ fallbacks.incrementAndGet(); }
+              else if(!ok){ torn.incrementAndGet(); }
+            }
+          } catch(Exception e) {
+            e.printStackTrace();
+            failed.incrementAndGet();
+          }
+        }
+      };
+    }
+    final AtomicBoolean done = new AtomicBoolean(false);
+    Thread writer = new Thread() {
+      public void run() {
+        Random rand = new Random(-1);
+        try {
+          for(int v = 1; !done.get(); v++){
+            int page = rand.nextInt(n);
+            ByteBuffer b = file.pin(page);
+            for(int j = 0; j < b.limit(); j += 4){ b.putInt(j, v); }
+            file.unpin(page, true);
+          }
+        } catch(Exception e) {
+          e.printStackTrace();
+          failed.incrementAndGet();
+        }
+      }
+    };
+    writer.start();
+    for(Thread r : readers){ r.start(); }
+    for(Thread r : readers){ r.join(); }
+    done.set(true);
+    writer.join();
+    file.flush();
+    path.delete();
+    System.out.println(String.format(
+      "%d threads x %d reads: %d under a pin, %d torn, %d failures", 
+      threads, ops, fallbacks.get(), torn.get(), failed.get()));
+    return torn.get() == 0 && failed.get() == 0;
+  }
+
+  //Write [pages] pages through [file], read them back, and close it.
+  long tempRound(FileManager fm, ManagedFile file, int pages)
+    throws BufferException, IOException
+  {
+    long start = System.nanoTime();
+    for(int i = 0; i < pages; i++){
+      ByteBuffer b = file.pin(i);
+      for(int j = 0; j < b.limit(); j += 4){ b.putInt(j, i+j); }
+      file.unpin(i, true);
+    }
+    for(int i = 0; i < pages; i++){
+      ByteBuffer b = file.pin(i);
+      if(b.getInt(4) != i+4){ System.out.println("Bad page "+i); }
+      file.unpin(i);
+    }
+    fm.close(file.getFile());
+    return System.nanoTime() - start;
+  }
+
+  public void temp()
+    throws BufferException, IOException
+  {
+    //the first round warms up the JIT
+    for(int round = 0; round < 2; round++){
+      for(int pages : new int[] { frames / 4, filePages }){
+        FileManager fm = new FileManager(pool(false));
+        ManagedFile temp = fm.openTemp(pages);
+        long t = tempRound(fm, temp, pages);
+        boolean spilled = temp.isSpilled();
+        boolean leftBehind = temp.getFile().exists();
+
+        File path = File.createTempFile("SQL", ".bench");
+        path.deleteOnExit();
+        ManagedFile plain = fm.open(path);
+        plain.resize(pages);
+        long p = tempRound(fm, plain, pages);
+        path.delete();
+        if(round > 0){
+          System.out.println(String.format(
+            "%6d pages: temp %.2f ms (%s%s); plain file %.2f ms",
+            pages, t / 1000000.0, spilled ? "spilled" : "in memory",
+            leftBehind ? ", NOT DELETED" : "", p / 1000000.0));
+        }
+      }
+    }
+  }
+
+  //Run the Zipfian lookup workload through a fresh pool, after warming it 
+  //from [snapshot] (if not null).  Returns the nanoseconds until a window of
+  //1000 gets first had a 90% hit ratio (counting the snapshot load), or -1.
+  long warmRound(File path, IndexKeySpec keySpec, Datum[][] keys, 
+                 File snapshot, boolean report)
+    throws SqlException, IOException
+  {
+    if(dropCaches){ dropCaches(); }
+    FileManager fm = new FileManager(pool(false));
+    ManagedFile file = fm.open(path);
+    ISAMIndex idx = new ISAMIndex(file, keySpec);
+    long start = System.nanoTime();
+    int loaded = (snapshot == null) ? 0 : fm.loadSnapshot(snapshot);
+    long loadNanos = System.nanoTime() - start;
+    file.resetStats();
+    Zipf zipf = new Zipf(keys.length, 1.0, 52982);
+    long warm = -1;
+    for(int i = 0; i < ops; i++){
+      idx.get(keys[zipf.next()]);
+      if(warm < 0 && (i + 1) % 1000 == 0){
+        if(file.getStats().getHitRatio() >= 0.9){ 
+          warm = System.nanoTime() - start; 
+        }
+        file.resetStats();
+      }
+    }
+    long total = System.nanoTime() - start;
+    if(report){
+      System.out.println(String.format(
+        "%-14s %5d pages loaded in %7.2f ms; warm after %s; %d gets in %d ms",
+        (snapshot == null) ? "cold:" : "from snapshot:", loaded, 
+        loadNanos / 1000000.0, 
+        (warm < 0) ? "never" : String.format("%.2f ms", warm / 1000000.0),
+        ops, total / 1000000));
+    }
+    fm.close(path);
+    return warm;
+  }
+
+  public void warm()
+    throws SqlException, IOException
+  {
+    IndexKeySpec keySpec = 
+      new GenericIndexKeySpec(new TestDataStream(1, 4, 0).getSchema(), 1);
+    Datum[][] keys = sampleKeys(keySpec);
+    //spread the popular keys over the whole index
+    Random rand = new Random(42);
+    for(int i = keys.length - 1; i > 0; i--){
+      int j = rand.nextInt(i + 1);
+      Datum[] k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+    }
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    path.delete();
+    ISAMIndex.create(new FileManager(pool(false)), path, 
+                     new TestDataStream(1, 4, rows), keySpec);
+    File snapshot = File.createTempFile("SQL", ".snapshot");
+    snapshot.deleteOnExit();
+
+    //the "previous run", which leaves its working set in the pool
+    FileManager fm = new FileManager(pool(false));
+    ISAMIndex idx = new ISAMIndex(fm.open(path), keySpec);
+    Zipf zipf = new Zipf(keys.length, 1.0, 52982);
+    for(int i = 0; i < ops; i++){ idx.get(keys[zipf.next()]); }
+    System.out.println(String.format(
+      "snapshot of %d pages", fm.saveSnapshot(snapshot)));
+    fm.close(path);
+
+    //the first round warms up the JIT
+    for(int round = 0; round < 2; round++){
+      warmRound(path, keySpec, keys, null, round > 0);
+      warmRound(path, keySpec, keys, snapshot, round > 0);
+    }
+    snapshot.delete();
+    path.delete();
+  }
+
+  public void dirty()
+    throws BufferException, IOException
+  {
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    path.delete();
+    FileManager fm = new FileManager(pool(false));
+    ManagedFile file = fm.open(path);
+    file.setSyncOnEvict(false);
+    file.resize(filePages);
+    file.flush();
+    //give every page a Page, as a long-running server would have
+    for(int i = 0; i < filePages; i++){ file.getBuffer(i); }
+    Random rand = new Random(42);
+    int flushes = 200;
+    //the first round warms up the JIT
+    for(int round = 0; round < 2; round++){
+      long nanos = 0;
+      for(int f = 0; f < flushes; f++){
+        for(int i = 0; i < 10; i++){
+          int p = rand.nextInt(filePages);
+          file.pin(p).putInt(0, f);
+          file.unpin(p, true);
+        }
+        long start = System.nanoTime();
+        file.flush();
+        nanos += System.nanoTime() - start;
+      }
+      if(round > 0){
+        System.out.println(String.format(
+          "%d pages, 10 dirty: %.1f us/flush", 
+          filePages, (nanos / 1000.0) / flushes));
+      }
+    }
+    fm.close(path);
+    path.delete();
+  }
+
+  public void compress()
+    throws SqlException, IOException
+  {
+    IndexKeySpec keySpec = 
+      new GenericIndexKeySpec(new TestDataStream(1, 4, 0).getSchema(), 1);
+    Datum[][] keys = sampleKeys(keySpec);
+    File[] paths = new File[2];
+    long[] builds = new long[2];
+    for(int i = 0; i < 2; i++){
+      paths[i] = File.createTempFile("SQL", ".bench");
+      paths[i].deleteOnExit();
+      paths[i].delete();
+      FileManager fm = new FileManager(pool(false));
+      if(i == 1){ fm.setCompression(new PackedIntCodec()); }
+      long start = System.nanoTime();
+      ISAMIndex.create(fm, paths[i], new TestDataStream(1, 4, rows), keySpec);
+      builds[i] = System.nanoTime() - start;
+    }
+    //the first round warms up the JIT
+    for(int round = 0; round < 3; round++){
+      for(int i = 0; i < 2; i++){
+        long scan = scanRound(paths[i], keySpec, ManagedFile.DEFAULT_READ_AHEAD);
+        FileManager fm = new FileManager(pool(false));
+        ISAMIndex idx = new ISAMIndex(fm.open(paths[i]), keySpec);
+        long gets = lookupRound(idx, keys);
+        fm.close(paths[i]);
+        if(round > 0){
+          System.out.println(String.format(
+            "%-10s %9d bytes, built in %d ms; scan %d ms; %.2f us/get",
+            (i == 0) ? "plain:" : "compressed:", paths[i].length(), 
+            builds[i] / 1000000, scan / 1000000, 
+            (gets / 1000.0) / keys.length));
+        }
+      }
+    }
+    paths[0].delete();
+    paths[1].delete();
+  }
+
+  //Pin and unpin [ops] random pages of [path] with up to [depth] pinAsync()s
+  //outstanding; returns the number of pages per second.
+  double asyncRound(File path, int depth)
+    throws Exception
+  {
+    if(dropCaches){ dropCaches(); }
+    FileManager fm = new FileManager(pool(false));
+    ManagedFile file = fm.open(path);
+    Random rand = new Random(42);
+    ArrayDeque<Integer> pages = new ArrayDeque<Integer>();
+    ArrayDeque<CompletableFuture<ByteBuffer>> inFlight = 
+      new ArrayDeque<CompletableFuture<ByteBuffer>>();
+    long start = System.nanoTime();
+    for(int i = 0; i < ops + depth; i++){
+      if(inFlight.size() == depth || i >= ops){
+        if(inFlight.isEmpty()){ break; }
+        ByteBuffer b = inFlight.poll().get();
+        int page = pages.poll();
+        if(b.getInt(0) != page){ System.out.println("Bad page "+page); }
+        file.unpin(page);
+      }
+      if(i < ops){
+        int page = rand.nextInt(filePages);
+        pages.add(page);
+        inFlight.add(file.pinAsync(page));
+      }
+    }
+    long nanos = System.nanoTime() - start;
+    fm.close(path);
+    return ops * 1000000000.0 / nanos;
+  }
+
+  //Bytes allocated by this thread so far, or -1 if the JVM can't tell.
+  static long allocatedBytes()
+  {
+    java.lang.management.ThreadMXBean bean = 
+      java.lang.management.ManagementFactory.getThreadMXBean();
+    if(!(bean instanceof com.sun.management.ThreadMXBean)){ return -1; }
+    return ((com.sun.management.ThreadMXBean)bean)
+      .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  public void rowScan()
+    throws Exception
+  {
+    IndexKeySpec keySpec = 
+      new GenericIndexKeySpec(new TestDataStream(1, 4, 0).getSchema(), 1);
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    path.delete();
+    ISAMIndex.create(new FileManager(pool(false)), path, 
+                     new TestDataStream(1, 4, rows), keySpec);
+    //the first round warms up the JIT
+    for(int round = 0; round < 3; round++){
+      for(int boxed = 1; boxed >= 0; boxed--){
+        FileManager fm = new FileManager(pool(false));
+        ManagedFile file = fm.open(path);
+        IndexIterator scan = new ISAMIndex(file, keySpec).scan();
+        long sum = 0;
+        int found = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        if(boxed == 1){
+          while(scan.hasNext()){ sum += scan.next()[1].toInt(); found++; }
+        } else {
+          PrimitiveRow row;
+          while((row = scan.nextRow()) != null){ sum += row.getInt(1); found++; }
+        }
+        long nanos = System.nanoTime() - start;
+        bytes = allocatedBytes() - bytes;
+        scan.close();
+        fm.close(path);
+        if(found != rows){ fail("Scan found "+found+" of "+rows+" rows"); }
+        if(round > 0){
+          System.out.println(String.format(
+            "%-10s %.2f Mrows/s, %.1f bytes allocated/row (sum %d)",
+            (boxed == 1) ? "next():" : "nextRow():", rows * 1000.0 / nanos,
+            (double)bytes / rows, sum));
+        }
+      }
+    }
+    path.delete();
+  }
+
+  public void probe()
+    throws Exception
+  {
+    IndexKeySpec keySpec = 
+      new GenericIndexKeySpec(new TestDataStream(1, 4, 0).getSchema(), 1);
+    Datum[][] keys = sampleKeys(keySpec);
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    path.delete();
+    ISAMIndex.create(new FileManager(pool(false)), path, 
+                     new TestDataStream(1, 4, rows), keySpec);
+    FileManager fm = new FileManager(
+      new BufferManager((int)(path.length() / BufferManager.DEFAULT_PAGE_SIZE) + 16,
+                        new LRUEvictionPolicy()));
+    ISAMIndex idx = new ISAMIndex(fm.open(path), keySpec);
+    //the first rounds warm up the JIT (and the pool)
+    for(int round = 0; round < 5; round++){
+      long bytes = allocatedBytes();
+      long nanos = lookupRound(idx, keys);
+      bytes = allocatedBytes() - bytes;
+      if(round >= 2){
+        System.out.println(String.format(
+          "%.2f us/get, %.0f bytes allocated/get",
+          (nanos / 1000.0) / keys.length, (double)bytes / keys.length));
+      }
+    }
+    fm.close(path);
+    path.delete();
+  }
+
+  public void layout()
+    throws Exception
+  {
+    TestDataStream ds = new TestDataStream(1, 4, rows);
+    Schema.Type[] schema = ds.getSchema();
+    Datum[][] data = new Datum[rows][];
+    for(int i = 0; ds.hasNext(); i++){ data[i] = ds.next(); }
+    //every page is filled with the same rows, so one page set covers them
+    ByteBuffer[] pages = new ByteBuffer[rows / 100 + 1];
+    int[] counts = new int[pages.length];
+    //the first rounds warm up the JIT
+    for(int round = 0; round < 6; round++){
+      long start = System.nanoTime();
+      int p = 0;
+      pages[0] = ByteBuffer.allocate(4096);
+      DatumBuffer out = new DatumBuffer(pages[0], schema);
+      out.initialize();
+      for(int i = 0; i < rows; i++){
+        try {
+          out.write(data[i]);
+        } catch(InsufficientSpaceException e) {
+          p++;
+          pages[p] = ByteBuffer.allocate(4096);
+          out = new DatumBuffer(pages[p], schema);
+          out.initialize();
+          out.write(data[i]);
+        }
+        counts[p]++;
+      }
+      long write = System.nanoTime() - start;
+
+      long sum = 0;
+      start = System.nanoTime();
+      for(int i = 0; i <= p; i++){
+        DatumBuffer db = new DatumBuffer(pages[i], schema);
+        for(int r = 0; r < counts[i]; r++){ sum += db.read(r)[1].toInt(); }
+      }
+      long read = System.nanoTime() - start;
+
+      PrimitiveRow row = new PrimitiveRow(schema);
+      start = System.nanoTime();
+      for(int i = 0; i <= p; i++){
+        DatumBuffer db = new DatumBuffer(pages[i], schema);
+        for(int r = 0; r < counts[i]; r++){ sum += db.read(r, row).getInt(1); }
+      }
+      long readRow = System.nanoTime() - start;
+      if(round > 2){
+        System.out.println(String.format(
+          "write %.2f Mrows/s; read %.2f Mrows/s; read into PrimitiveRow %.2f Mrows/s (sum %d)",
+          rows * 1000.0 / write, rows * 1000.0 / read, 
+          rows * 1000.0 / readRow, sum));
+      }
+      counts = new int[pages.length];
+      System.gc();
+    }
+  }
+
+  //[rows] sorted rows (key, i, 7*i), keyed on a STRING or an INT.
+  ArrayList<Datum[]> keyedRows(boolean strings)
+  {
+    ArrayList<Datum[]> data = new ArrayList<Datum[]>(rows);
+    for(int i = 0; i < rows; i++){
+      Datum key = strings ? new Datum.Str(String.format("key%08d", i))
+                          : new Datum.Int(i);
+      data.add(new Datum[] { key, new Datum.Int(i), new Datum.Int(7 * i) });
+    }
+    return data;
+  }
+
+  public void strings()
+    throws Exception
+  {
+    Schema.Type[][] schemas = {
+      { Schema.Type.STRING, Schema.Type.INT, Schema.Type.INT },
+      { Schema.Type.INT, Schema.Type.INT, Schema.Type.INT }
+    };
+    File[] paths = new File[2];
+    ISAMIndex[] idx = new ISAMIndex[2];
+    FileManager[] fms = new FileManager[2];
+    Datum[][][] keys = new Datum[2][][];
+    for(int s = 0; s < 2; s++){
+      IndexKeySpec keySpec = new GenericIndexKeySpec(schemas[s], 1);
+      ArrayList<Datum[]> data = keyedRows(s == 0);
+      keys[s] = new Datum[(rows + 99) / 100][];
+      for(int i = 0; i < rows; i += 100){
+        keys[s][i / 100] = keySpec.createKey(data.get(i));
+      }
+      paths[s] = File.createTempFile("SQL", ".bench");
+      paths[s].deleteOnExit();
+      paths[s].delete();
+      ISAMIndex.create(new FileManager(pool(false)), paths[s], 
+                       data.iterator(), keySpec);
+      fms[s] = new FileManager(new BufferManager(
+        (int)(paths[s].length() / BufferManager.DEFAULT_PAGE_SIZE) + 16,
+        new LRUEvictionPolicy()));
+      idx[s] = new ISAMIndex(fms[s].open(paths[s]), keySpec);
+    }
+    ArrayList<Datum[]> data = keyedRows(true);
+    ByteBuffer[] pages = new ByteBuffer[rows / 10 + 1];
+    int[] counts = new int[pages.length];
+    //the first rounds warm up the JIT
+    for(int round = 0; round < 5; round++){
+      long[] gets = new long[2];
+      int misses = 0;
+      for(int s = 0; s < 2; s++){
+        long start = System.nanoTime();
+        for(Datum[] key : keys[s]){
+          if(idx[s].get(key) == null){ misses++; }
+        }
+        gets[s] = System.nanoTime() - start;
+      }
+      if(misses > 0){ fail(misses+" lookups failed"); }
+
+      long start = System.nanoTime();
+      int p = 0;
+      pages[0] = ByteBuffer.allocate(4096);
+      DatumBuffer out = new DatumBuffer(pages[0], schemas[0]);
+      out.initialize();
+      for(Datum[] row : data){
+        try {
+          out.write(row);
+        } catch(InsufficientSpaceException e) {
+          p++;
+          pages[p] = ByteBuffer.allocate(4096);
+          out = new DatumBuffer(pages[p], schemas[0]);
+          out.initialize();
+          out.write(row);
+        }
+        counts[p]++;
+      }
+      long write = System.nanoTime() - start;
+      long chars = 0;
+      start = System.nanoTime();
+      for(int i = 0; i <= p; i++){
+        DatumBuffer db = new DatumBuffer(pages[i], schemas[0]);
+        for(int r = 0; r < counts[i]; r++){ 
+          chars += db.read(r)[0].toString().length(); 
+        }
+      }
+      long read = System.nanoTime() - start;
+      counts = new int[pages.length];
+      if(round >= 2){
+        System.out.println(String.format(
+          "get: %.2f us (STRING key), %.2f us (INT key), %d misses; "+
+          "STRING rows: write %.2f Mrows/s, read %.2f Mrows/s (%d chars)",
+          (gets[0] / 1000.0) / keys[0].length, 
+          (gets[1] / 1000.0) / keys[1].length, misses,
+          rows * 1000.0 / write, rows * 1000.0 / read, chars));
+      }
+    }
+    for(int s = 0; s < 2; s++){
+      fms[s].close(paths[s]);
+      paths[s].delete();
+    }
+  }
+
+  public void async()
+    throws Exception
+  {
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    path.delete();
+    FileManager fm = new FileManager(pool(false));
+    ManagedFile file = fm.open(path);
+    file.setSyncOnEvict(false);
+    file.resize(filePages);
+    for(int i = 0; i < filePages; i++){
+      file.pin(i).putInt(0, i);
+      file.unpin(i, true);
+    }
+    fm.close(path);
+    //the first round warms up the JIT
+    for(int round = 0; round < 2; round++){
+      for(int depth : new int[] { 1, 8, 32 }){
+        double rate = asyncRound(path, depth);
+        if(round > 0){
+          System.out.println(String.format(
+            "queue depth %2d: %.1f kpages/s", depth, rate / 1000));
+        }
+      }
+    }
+    path.delete();
+  }
+
+  //Check (and report) the hits and misses [file] has counted since its last
+  //resetStats().
+  static boolean expectStats(String what, ManagedFile file, 
+                             long hits, long misses)
+  {
+    BufferStats stats = file.getStats();
+    System.out.println(String.format("%s: %d hits, %d misses", 
+                                     what, stats.getHits(), stats.getMisses()));
+    if(stats.getHits() == hits && stats.getMisses() == misses){ return true; }
+    System.out.println("  expected "+hits+" hits and "+misses+" misses");
+    return false;
+  }
+
+  int statsScan(ManagedFile file, Schema.Type[] schema, int pages)
+    throws SqlException, IOException
+  {
+    IndexIterator scan = new DatumStreamIterator(file, schema)
+      .currPage(0).currRecord(0).maxPage(pages - 1).ready();
+    int found = 0;
+    while(scan.hasNext()){ scan.nextRow(); found++; }
+    scan.close();
+    return found;
+  }
+
+  public boolean stats()
+    throws SqlException, IOException
+  {
+    TestDataStream ds = new TestDataStream(1, 4, rows);
+    Schema.Type[] schema = ds.getSchema();
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    path.delete();
+    FileManager fm = new FileManager(pool(false));
+    ManagedFile file = fm.open(path);
+    file.resize(1);
+    int pages = 1;
+    DatumBuffer db = new DatumBuffer(file.pin(0), schema);
+    db.initialize();
+    while(ds.hasNext()){
+      Datum[] row = ds.next();
+      try {
+        db.write(row);
+      } catch(InsufficientSpaceException e) {
+        file.unpin(pages - 1, true);
+        file.resize(pages + 1);
+        db = new DatumBuffer(file.pin(pages), schema);
+        db.initialize();
+        db.write(row);
+        pages++;
+      }
+    }
+    file.unpin(pages - 1, true);
+    fm.close(path);
+
+    fm = new FileManager(new BufferManager(pages + 16, policy(policyName, pages + 16)));
+    file = fm.open(path);
+    boolean ok = true;
+    file.resetStats();
+    int found = statsScan(file, schema, pages);
+    ok &= expectStats("cold scan of "+pages+" pages", file, 0, pages);
+    file.resetStats();
+    found += statsScan(file, schema, pages);
+    ok &= expectStats("warm scan", file, pages, 0);
+    file.resetStats();
+    for(int i = 0; i < pages; i++){ file.getBuffer(i); }
+    ok &= expectStats("getBuffer() of every page", file, pages, 0);
+    fm.close(path);
+    path.delete();
+    if(found != 2 * rows){
+      System.out.println("Scans found "+found+" of "+(2 * rows)+" rows");
+      ok = false;
+    }
+    return ok;
+  }
+
+  //The pieces random strings are made of: a few ASCII chars (which the 
+  //strings are sometimes limited to, so that they share long prefixes), 
+  //the quote that Datum.Str compares strings with, and chars that take 1 to
+  //4 bytes in UTF-8, up to a surrogate pair.
+  static final String[] STRING_PARTS = { 
+    "a", "b", "'", "z", "A", "\u0000", "\u007f", "\u00e9", "\u4e2d", 
+    "\ud83d\ude00" 
+  };
+
+  static String randomString(Random rand)
+  {
+    StringBuilder s = new StringBuilder();
+    int parts = rand.nextBoolean() ? 4 : STRING_PARTS.length;
+    int n = rand.nextInt(8);
+    for(int i = 0; i < n; i++){ s.append(STRING_PARTS[rand.nextInt(parts)]); }
+    return s.toString();
+  }
+
+  public boolean stringCheck()
+  {
+    Random rand = new Random(42);
+    ByteBuffer[] pages = { 
+      ByteBuffer.allocate(256), ByteBuffer.allocateDirect(256) 
+    };
+    int bad = 0;
+    for(int i = 0; i < ops; i++){
+      String a = randomString(rand), b = randomString(rand);
+      Datum.Str da = new Datum.Str(a);
+      int expected = Integer.signum(da.compareTo(new Datum.Str(b)));
+      for(ByteBuffer page : pages){
+        //at an odd position, as a string after a BOOL would be
+        DatumSerialization.write(page, 3, da);
+        String wrong = null;
+        if(!DatumSerialization.readString(page, 3).equals(a)){
+          wrong = "readString()";
+        } else if(Integer.signum(
+                    DatumSerialization.compareString(page, 3, b)) != expected){
+          wrong = "compareString() against "+new Datum.Str(b);
+        } else if(DatumSerialization.hashString(page, 3) != a.hashCode()){
+          wrong = "hashString()";
+        }
+        if(wrong != null && bad++ < 10){
+          System.out.println("Mismatch: "+wrong+" of "+da+
+                             (page.isDirect() ? " (direct)" : ""));
+        }
+      }
+    }
+    System.out.println(ops+" strings checked, "+bad+" mismatches");
+    return bad == 0;
+  }
+
+  static final Schema.Type[] KEY_TYPES = {
+    Schema.Type.INT, Schema.Type.FLOAT, Schema.Type.STRING, Schema.Type.BOOL,
+    Schema.Type.INT
+  };
+  //Values that random keys are mostly made of: the extremes, the two zeroes,
+  //and a few values near them, so that most pairs of keys tie on some fields.
+  static final int[] KEY_INTS = { 
+    0, 1, -1, 5, Integer.MIN_VALUE, Integer.MAX_VALUE 
+  };
+  static final float[] KEY_FLOATS = { 
+    0.0f, -0.0f, 1.5f, -1.5f, 3f, Float.MIN_VALUE, -Float.MIN_VALUE, 
+    Float.MAX_VALUE, -Float.MAX_VALUE, 
+    Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY 
+  };
+
+  static Datum[] randomKey(Random rand)
+  {
+    Datum[] key = new Datum[1 + rand.nextInt(KEY_TYPES.length)];
+    for(int i = 0; i < key.length; i++){
+      switch(KEY_TYPES[i]){
+        case INT: 
+          key[i] = new Datum.Int(rand.nextInt(8) == 0 ? 
+            rand.nextInt() : KEY_INTS[rand.nextInt(KEY_INTS.length)]);
+          break;
+        case FLOAT:
+          key[i] = new Datum.Flt(rand.nextInt(8) == 0 ? rand.nextFloat() - 0.5f :
+            KEY_FLOATS[rand.nextInt(KEY_FLOATS.length)]);
+          break;
+        case STRING: key[i] = new Datum.Str(randomString(rand)); break;
+        case BOOL: 
+          key[i] = rand.nextBoolean() ? Datum.Bool.TRUE : Datum.Bool.FALSE;
+          break;
+      }
+    }
+    return key;
+  }
+
+  public boolean keyCheck()
+    throws Datum.CastError
+  {
+    Random rand = new Random(42);
+    int[] cols = new int[KEY_TYPES.length];
+    for(int i = 0; i < cols.length; i++){ cols[i] = i; }
+    PrimitiveRow row = new PrimitiveRow(KEY_TYPES);
+    int bad = 0;
+    for(int i = 0; i < ops; i++){
+      Datum[] a = randomKey(rand), b = randomKey(rand);
+      byte[] ea = KeyEncoding.encode(KEY_TYPES, a);
+      byte[] eb = KeyEncoding.encode(KEY_TYPES, b);
+      String wrong = null;
+      if(Integer.signum(KeyEncoding.compare(ea, eb)) != 
+         Integer.signum(Datum.compareRows(a, b))){
+        wrong = "compare() against "+Datum.stringOfRow(b);
+      } else if(a.length == KEY_TYPES.length && 
+                !java.util.Arrays.equals(KeyEncoding.encode(row.set(a), cols), ea)){
+        wrong = "encode() of a Row";
+      }
+      if(wrong != null && bad++ < 10){
+        System.out.println("Mismatch: "+wrong+" of "+Datum.stringOfRow(a));
+      }
+    }
+    System.out.println(ops+" key pairs checked, "+bad+" mismatches");
+    return bad == 0;
+  }
+
+  //Fill [page] with words drawn from [seed]: runs of zeroes (of up to a 
+  //page), runs of Integer.MIN_VALUE and other words whose zig-zag form is 
+  //as long as a varint gets, small ints, and random bits, which don't 
+  //compress at all.  Some pages are nothing but random bits.
+  static void fillPage(ByteBuffer page, long seed)
+  {
+    Random rand = new Random(seed);
+    int words = page.limit() >>> 2;
+    boolean noise = rand.nextInt(8) == 0;
+    int i = 0;
+    while(i < words){
+      int run = 1 + rand.nextInt(rand.nextBoolean() ? 4 : words);
+      int kind = noise ? 4 : rand.nextInt(5);
+      for(int j = 0; j < run && i < words; j++, i++){
+        int word;
+        switch(kind){
+          case 0: word = 0; break;
+          case 1: word = Integer.MIN_VALUE; break;
+          case 2: word = KEY_INTS[rand.nextInt(KEY_INTS.length)]; break;
+          case 3: word = rand.nextInt(200) - 100; break;
+          default: word = rand.nextInt(); break;
+        }
+        page.putInt(i << 2, word);
+      }
+    }
+  }
+
+  //Compare the words of two pages; returns the first that differs, or -1.
+  static int pageMismatch(ByteBuffer a, ByteBuffer b)
+  {
+    for(int i = 0; i < a.limit(); i += 4){
+      if(a.getInt(i) != b.getInt(i)){ return i >>> 2; }
+    }
+    return -1;
+  }
+
+  public boolean codecCheck()
+    throws BufferException, IOException
+  {
+    PackedIntCodec codec = new PackedIntCodec();
+    int bad = 0;
+    int checked = Math.max(ops / 100, 1);
+    for(int i = 0; i < checked; i++){
+      ByteBuffer page = ByteBuffer.allocate(1024 << (i % 7));
+      ByteBuffer back = ByteBuffer.allocate(page.limit());
+      fillPage(page, i);
+      //no page grows by more than a quarter, so this always fits...
+      byte[] out = new byte[page.limit() + page.limit() / 4 + 8];
+      int length = codec.compress(page, out);
+      //...and this, as CompressedPageStore sizes it, only if it shrinks
+      int tight = codec.compress(page, new byte[page.limit() - 1]);
+      String wrong = null;
+      if(length < 0 || (tight >= 0 && tight != length) || 
+         (tight < 0 && length < page.limit() - 6)){
+        wrong = "compressed to "+length+" and "+tight+" bytes";
+      } else {
+        java.util.Arrays.fill(back.array(), (byte)0x55);
+        try {
+          codec.decompress(out, 0, length, back);
+          int at = pageMismatch(page, back);
+          if(at >= 0){ wrong = "word "+at+" came back wrong"; }
+        } catch(IOException e) {
+          wrong = "didn't decompress: "+e.getMessage();
+        }
+      }
+      if(wrong != null && bad++ < 10){
+        System.out.println("Mismatch: page "+i+" ("+page.limit()+" bytes) "+
+                           wrong);
+      }
+    }
+    System.out.println(checked+" pages compressed, "+bad+" mismatches");
+
+    File path = File.createTempFile("SQL", ".bench");
+    path.deleteOnExit();
+    path.delete();
+    int n = frames * 4;
+    //the seed each page was last written from, or -1 if it never was
+    long[] seeds = new long[n];
+    java.util.Arrays.fill(seeds, -1);
+    FileManager fm = new FileManager(pool(false));
+    fm.setCompression(codec);
+    ManagedFile file = fm.open(path);
+    file.resize(n);
+    Random rand = new Random(42);
+    for(int round = 0; round < 2; round++){
+      for(int i = 0; i < n; i++){
+        if(rand.nextInt(round + 2) != 0){ continue; }
+        seeds[i] = ((long)round << 32) | i;
+        fillPage(file.pin(i), seeds[i]);
+        file.unpin(i, true);
+      }
+    }
+    fm.close(path);
+    fm = new FileManager(pool(false));
+    file = fm.open(path);
+    ByteBuffer expected = ByteBuffer.allocate(BufferManager.DEFAULT_PAGE_SIZE);
+    int badPages = 0;
+    if(!file.isCompressed() || file.size() != n){
+      System.out.println("Reopened a file of "+file.size()+" pages, "+
+                         (file.isCompressed() ? "compressed" : "uncompressed"));
+      badPages++;
+    }
+    for(int i = 0; i < n && i < file.size(); i++){
+      java.util.Arrays.fill(expected.array(), (byte)0);
+      if(seeds[i] >= 0){ fillPage(expected, seeds[i]); }
+      int at = pageMismatch(expected, file.pin(i));
+      file.unpin(i);
+      if(at >= 0 && badPages++ < 10){
+        System.out.println("Mismatch: word "+at+" of page "+i);
+      }
+    }
+    fm.close(path);
+    path.delete();
+    System.out.println(n+" pages read back from a compressed file, "+
+                       badPages+" mismatches");
+    return bad == 0 && badPages == 0;
+  }
+
+  public static void main(String[] args)
+    throws Exception
+  {
+    BufferPoolBenchmark bench = new BufferPoolBenchmark();
+    String mode = "stress";
+    for(int i = 0; i < args.length; i++){
+      if(args[i].equals("-frames")){
+        bench.frames = Integer.parseInt(args[i+1]);
+        i++;
+      } else if(args[i].equals("-pages")){
+        bench.pages = Integer.parseInt(args[i+1]);
+        i++;
+      } else if(args[i].equals("-threads")){
+        bench.threads = Integer.parseInt(args[i+1]);
+        i++;
+      } else if(args[i].equals("-ops")){
+        bench.ops = Integer.parseInt(args[i+1]);
+        i++;
+      } else if(args[i].equals("-policy")){
+        bench.policyName = args[i+1];
+        i++;
+      } else if(args[i].equals("-rows")){
+        bench.rows = Integer.parseInt(args[i+1]);
+        i++;
+      } else if(args[i].equals("-dropCaches")){
+        bench.dropCaches = true;
+      } else if(args[i].equals("-filePages")){
+        bench.filePages = Integer.parseInt(args[i+1]);
+        i++;
+      } else {
+        mode = args[i];
+      }
+    }
+    if(mode.equals("stress")){
+      if(!bench.stress()){
+        System.out.println("Test Failed!");
+        System.exit(-1);
+      }
+      System.out.println("Test Successful!");
+    } else if(mode.equals("throughput")){
+      bench.throughput();
+    } else if(mode.equals("io")){
+      bench.io();
+    } else if(mode.equals("pagesize")){
+      bench.pageSizes();
+    } else if(mode.equals("policy")){
+      bench.policies();
+    } else if(mode.equals("mixed")){
+      bench.mixed();
+    } else if(mode.equals("cleaner")){
+      bench.cleaner();
+    } else if(mode.equals("flush")){
+      bench.flush();
+    } else if(mode.equals("scan")){
+      bench.scan();
+    } else if(mode.equals("mmap")){
+      bench.mmap();
+    } else if(mode.equals("quota")){
+      bench.quota();
+    } else if(mode.equals("open")){
+      bench.open();
+    } else if(mode.equals("grow")){
+      bench.grow();
+    } else if(mode.equals("range")){
+      bench.range();
+    } else if(mode.equals("lookup")){
+      bench.lookup();
+    } else if(mode.equals("optimistic")){
+      if(!bench.optimistic()){
+        System.out.println("Test Failed!");
+        System.exit(-1);
+      }
+      System.out.println("Test Successful!");
+    } else if(mode.equals("temp")){
+      bench.temp();
+    } else if(mode.equals("warm")){
+      bench.warm();
+    } else if(mode.equals("dirty")){
+      bench.dirty();
+    } else if(mode.equals("compress")){
+      bench.compress();
+    } else if(mode.equals("async")){
+      bench.async();
+    } else if(mode.equals("rows")){
+      bench.rowScan();
+    } else if(mode.equals("probe")){
+      bench.probe();
+    } else if(mode.equals("layout")){
+      bench.layout();
+    } else if(mode.equals("strings")){
+      bench.strings();
+    } else if(mode.equals("stats")){
+      if(!bench.stats()){
+        System.out.println("Test Failed!");
+        System.exit(-1);
+      }
+      System.out.println("Test Successful!");
+    } else if(mode.equals("stringcheck")){
+      if(!bench.stringCheck()){
+        System.out.println("Test Failed!");
+        System.exit(-1);
+      }
+      System.out.println("Test Successful!");
+    } else if(mode.equals("keycheck")){
+      if(!bench.keyCheck()){
+        System.out.println("Test Failed!");
+        System.exit(-1);
+      }
+      System.out.println("Test Successful!");
+    } else if(mode.equals("codeccheck")){
+      if(!bench.codecCheck()){
+        System.out.println("Test Failed!");
+        System.exit(-1);
+      }
+      System.out.println("Test Successful!");
+    } else {
+      System.err.println("Unknown mode "+mode);
+      System.exit(-1);
+    }
+  }
+}